@@ -0,0 +1,105 @@
+/*
+ * JMH benchmarks for DisplaceFractal (see bench/pom.xml for how to run them).
+ *
+ * They cover:
+ *
+ * 	render          - every size from 129 up to 4097
+ * 	toGray          - turning the raw heights into gray levels (no JavaFX), without and
+ * 			with post smoothing, at 1025
+ * 	remap           - gray levels plus copying them into a JavaFX image, at 1025
+ *
+ * Everything runs single threaded, so the allocation numbers from -prof gc cover all
+ * of the work.
+ */
+
+package fractal;
+
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class DisplaceBenchmarks {
+
+    @State(Scope.Thread)
+    public static class Render {
+        @Param({"129", "257", "513", "1025", "2049", "4097"})
+        public int size;
+
+        DisplaceFractal fractal;
+        DisplaceFractal.DisplaceSettings settings;
+
+        @Setup
+        public void setUp() {
+            fractal = new DisplaceFractal(size, 1);
+            settings = settings();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Converted {
+        // The raw heights of one 1025 terrain, for timing the coloring on its own
+
+        DisplaceFractal fractal;
+        DisplaceFractal.DisplaceSettings gray, smoothGray;
+        Heightfield heights;
+
+        @Setup
+        public void setUp() {
+            fractal = new DisplaceFractal(1025, 1);
+
+            gray = settings();
+            smoothGray = settings();
+            smoothGray.postSmooth = true;
+
+            heights = fractal.generate(gray);
+
+            // remap() needs a render first
+            fractal.render(gray);
+        }
+    }
+
+    @Benchmark
+    public WritableImage render(Render state) {
+        return state.fractal.render(state.settings);
+    }
+
+    @Benchmark
+    public int[] toGray(Converted state) {
+        return state.fractal.toGray(state.heights, state.gray);
+    }
+
+    @Benchmark
+    public int[] toGraySmoothed(Converted state) {
+        return state.fractal.toGray(state.heights, state.smoothGray);
+    }
+
+    @Benchmark
+    public WritableImage remap(Converted state) {
+        return state.fractal.remap(state.gray);
+    }
+
+    static DisplaceFractal.DisplaceSettings settings() {
+        // The UI's starting settings
+        DisplaceFractal.DisplaceSettings settings = new DisplaceFractal.DisplaceSettings();
+        settings.roughness = 15;
+        settings.mountainSize = 20;
+        settings.contrast = 100;
+        return settings;
+    }
+}
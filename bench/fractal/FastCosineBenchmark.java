@@ -0,0 +1,114 @@
+/*
+ * Benchmark for the fastMath option on cosine interpolation (see FastCosine).
+ *
+ * The JMH benchmark generates the same COSINE noise (same seed) with fastMath off and
+ * on, for both the per-pixel and the vectorized (scanline) paths, so the speedup is
+ * the ratio of the ops/s of the two.
+ *
+ * main() reports how far the lookup table curve gets from the real cosine curve, and
+ * the biggest difference of any pixel between the two images, both as a raw noise
+ * value and in gray levels:
+ *
+ * 	java -cp target/bench/benchmarks.jar fractal.FastCosineBenchmark [size]
+ */
+
+package fractal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class FastCosineBenchmark {
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    @Param({"false", "true"})
+    public boolean vectorized;
+
+    private PerlinFractal fractal;
+    private PerlinFractal.PerlinSettings settings;
+
+    @Setup
+    public void setUp() {
+        fractal = new PerlinFractal(1025, 1);
+        settings = settings(vectorized);
+        settings.fastMath = fastMath;
+    }
+
+    @Benchmark
+    public Heightfield generate() {
+        return fractal.generate(settings);
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1025;
+
+        // How far the table curve is from the real curve
+
+        double worstCurve = 0;
+        int samples = 10000000;
+
+        for (int i = 0; i <= samples; i++) {
+            double x = (double) i / samples;
+            double exact = (1 - Math.cos(x * Math.PI)) * 0.5;
+            worstCurve = Math.max(worstCurve, Math.abs(FastCosine.weight(x) - exact));
+        }
+
+        System.out.printf("curve:  max error %.3e (documented bound %.3e)%n", worstCurve, FastCosine.MAX_ERROR);
+
+        for (boolean vectorized : new boolean[]{false, true}) {
+            PerlinFractal.PerlinSettings settings = settings(vectorized);
+
+            settings.fastMath = false;
+            Heightfield exact = new PerlinFractal(size, 1).generate(settings);
+
+            settings.fastMath = true;
+            Heightfield fast = new PerlinFractal(size, 1).generate(settings);
+
+            // Compare the two images pixel by pixel
+
+            double worstValue = 0;
+            int worstGray = 0;
+            double[] a = exact.getData();
+            double[] b = fast.getData();
+
+            for (int i = 0; i < a.length; i++) {
+                worstValue = Math.max(worstValue, Math.abs(a[i] - b[i]));
+                worstGray = Math.max(worstGray, Math.abs(gray(a[i]) - gray(b[i])));
+            }
+
+            System.out.printf("%s %d^2:  max pixel deviation %.3e (%d gray levels)%n",
+                    vectorized ? "scanline " : "per-pixel", size, worstValue, worstGray);
+        }
+    }
+
+    private static PerlinFractal.PerlinSettings settings(boolean vectorized) {
+        PerlinFractal.PerlinSettings settings = new PerlinFractal.PerlinSettings();
+        settings.blends = 6;
+        settings.interp = PerlinFractal.COSINE;
+        settings.maxBright = 100;
+        settings.vectorized = vectorized;
+        return settings;
+    }
+
+    private static int gray(double value) {
+        // Same as PerlinFractal's color for a non-standard pixel at maxBright 100
+        return Math.max(0, Math.min(255, (int) (255.0 * value)));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JMH benchmarks for the stages that work on finished heights (see bench/pom.xml for
+ * how to run them).
+ *
+ * They cover:
+ *
+ * 	erode          - ten iterations of erosion on a 513 displace terrain
+ * 	relief         - normals and hillshade for a 1025 displace terrain, in both
+ * 			normal formats
+ * 	htfWrite       - writing a 1025 terrain as a TiledHeightfield file
+ * 	htfReadAll     - reading all of it back
+ * 	htfReadRegion  - reading a 64 x 64 region out of the middle of it
+ *
+ * Everything runs single threaded, so the allocation numbers from -prof gc cover all
+ * of the work.
+ */
+
+package fractal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class HeightfieldBenchmarks {
+
+    @State(Scope.Thread)
+    public static class Terrain {
+        Heightfield small, large;
+
+        Erosion.ErosionSettings erosion;
+
+        @Setup
+        public void setUp() {
+            small = new DisplaceFractal(513, 1).generate(DisplaceBenchmarks.settings());
+            large = new DisplaceFractal(1025, 1).generate(DisplaceBenchmarks.settings());
+
+            erosion = new Erosion.ErosionSettings();
+            erosion.iterations = 10;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Normals {
+        @Param({"RGB8", "OCTAHEDRAL16"})
+        public String format;
+
+        Relief.ReliefSettings settings;
+
+        @Setup
+        public void setUp() {
+            settings = new Relief.ReliefSettings();
+            settings.normalFormat = format.equals("RGB8") ? Relief.RGB8 : Relief.OCTAHEDRAL16;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TiledFile {
+        // A 1025 terrain written out once, open for reading, and a second file for
+        // htfWrite to write over and over, so the two don't get in each other's way
+
+        Path file, written;
+        TiledHeightfield tiled;
+
+        @Setup
+        public void setUp(Terrain terrain) throws IOException {
+            file = Files.createTempFile("bench", ".htf");
+            written = Files.createTempFile("bench", ".htf");
+
+            TiledHeightfield.write(file, terrain.large, TiledHeightfield.DEFAULT_TILE_SIZE, false);
+            tiled = TiledHeightfield.open(file);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            tiled.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(written);
+        }
+    }
+
+    @Benchmark
+    public Heightfield erode(Terrain terrain) {
+        // erode() works in place, so each run gets a fresh copy
+        Heightfield copy = new Heightfield(513);
+        System.arraycopy(terrain.small.getData(), 0, copy.getData(), 0, copy.getData().length);
+        Erosion.erode(1, terrain.erosion, copy);
+        return copy;
+    }
+
+    @Benchmark
+    public Relief relief(Terrain terrain, Normals normals) {
+        return Relief.of(terrain.large, normals.settings);
+    }
+
+    @Benchmark
+    public Path htfWrite(Terrain terrain, TiledFile tiled) throws IOException {
+        TiledHeightfield.write(tiled.written, terrain.large, TiledHeightfield.DEFAULT_TILE_SIZE, false);
+        return tiled.written;
+    }
+
+    @Benchmark
+    public Heightfield htfReadAll(TiledFile tiled) {
+        return tiled.tiled.readAll(false);
+    }
+
+    @Benchmark
+    public Heightfield htfReadRegion(TiledFile tiled) {
+        return tiled.tiled.readRegion(500, 500, 64, 64, false);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * JMH benchmarks for PerlinFractal (see bench/pom.xml for how to run them).
+ *
+ * They cover:
+ *
+ * 	render        - every interpolation type with pre and post smoothing off and on
+ * 	scanline      - every interpolation type a row at a time, with and without separable
+ * 	seed          - filling the random noise tables on their own
+ * 	toGray        - turning raw noise into gray levels (no JavaFX), without and with
+ * 			post smoothing
+ * 	remap         - gray levels plus copying them into a JavaFX image
+ *
+ * Everything runs single threaded at 513 x 513, so the allocation numbers from -prof
+ * gc cover all of the work.  Keep the numbers from a run and compare them with the
+ * next run to spot a change that made things slower or made more garbage.
+ */
+
+package fractal;
+
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PerlinBenchmarks {
+    static final String[] INTERP_NAMES = {"LINEAR", "COSINE", "CUBIC", "STANDARD"};
+
+    static final int SIZE = 513;
+
+    @State(Scope.Thread)
+    public static class Render {
+        @Param({"LINEAR", "COSINE", "CUBIC", "STANDARD"})
+        public String interp;
+
+        @Param({"false", "true"})
+        public boolean preSmooth;
+
+        @Param({"false", "true"})
+        public boolean postSmooth;
+
+        PerlinFractal fractal;
+        PerlinFractal.PerlinSettings settings;
+
+        @Setup
+        public void setUp() {
+            fractal = new PerlinFractal(SIZE, 1);
+            settings = settings(interp);
+            settings.preSmooth = preSmooth;
+            settings.postSmooth = postSmooth;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Scanline {
+        @Param({"LINEAR", "COSINE", "CUBIC", "STANDARD"})
+        public String interp;
+
+        @Param({"false", "true"})
+        public boolean separable;
+
+        PerlinFractal fractal;
+        PerlinFractal.PerlinSettings settings;
+
+        @Setup
+        public void setUp() {
+            fractal = new PerlinFractal(SIZE, 1);
+            settings = settings(interp);
+            settings.vectorized = true;
+            settings.separable = separable;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Converted {
+        // The raw noise of one COSINE render, for timing the coloring on its own
+
+        PerlinFractal fractal;
+        PerlinFractal.PerlinSettings gray, smoothGray;
+        Heightfield noise;
+
+        @Setup
+        public void setUp() {
+            fractal = new PerlinFractal(SIZE, 1);
+
+            gray = settings("COSINE");
+            smoothGray = settings("COSINE");
+            smoothGray.postSmooth = true;
+
+            noise = fractal.generate(gray);
+
+            // remap() needs a render first
+            fractal.render(gray);
+        }
+    }
+
+    @Benchmark
+    public WritableImage render(Render state) {
+        return state.fractal.render(state.settings);
+    }
+
+    @Benchmark
+    public WritableImage scanline(Scanline state) {
+        return state.fractal.render(state.settings);
+    }
+
+    @Benchmark
+    public PerlinFractal seed(Converted state) {
+        state.fractal.seedNoise(false, new Progress());
+        return state.fractal;
+    }
+
+    @Benchmark
+    public int[] toGray(Converted state) {
+        return state.fractal.toGray(state.noise, state.gray);
+    }
+
+    @Benchmark
+    public int[] toGraySmoothed(Converted state) {
+        return state.fractal.toGray(state.noise, state.smoothGray);
+    }
+
+    @Benchmark
+    public WritableImage remap(Converted state) {
+        return state.fractal.remap(state.gray);
+    }
+
+    static PerlinFractal.PerlinSettings settings(String interp) {
+        // The UI's starting settings
+        PerlinFractal.PerlinSettings settings = new PerlinFractal.PerlinSettings();
+        settings.blends = 4;
+        settings.interp = Arrays.asList(INTERP_NAMES).indexOf(interp);
+        settings.maxBright = 100;
+        return settings;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * JMH check that the STANDARD (Mr. Perlin's gradient) path allocates nothing per pixel.
+ *
+ * Each operation is one pixel: all of the octaves of an OctavePlan added up with the
+ * STANDARD sampler, the same work PerlinFractal's per-pixel loop does.  The noise
+ * tables are filled the way seedNoise() fills them, with the gradients already made
+ * length one, so nothing should be made for any sample.  With -prof gc,
+ * gc.alloc.rate.norm is the bytes allocated per pixel, which should be 0.
+ *
+ * main() runs it with the gc profiler and fails if a pixel allocates anything:
+ *
+ * 	java -cp target/bench/benchmarks.jar fractal.StandardAllocationBenchmark
+ */
+
+package fractal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class StandardAllocationBenchmark {
+    private static final int SIZE = 513;
+
+    private OctavePlan plan;
+
+    // The row the next operation works out
+    private int y;
+
+    @Setup
+    public void setUp() {
+        // Random noise tables like seedNoise() makes
+
+        Random random = new Random(1);
+
+        Heightfield values = new Heightfield(SIZE);
+        double[] data = values.getData();
+        double[] gradients = new double[2 * SIZE * SIZE];
+
+        for (int i = 0; i < data.length; i++) {
+            double angle = 2 * Math.PI * random.nextDouble();
+
+            data[i] = random.nextDouble();
+            gradients[2 * i] = Math.cos(angle);
+            gradients[2 * i + 1] = Math.sin(angle);
+        }
+
+        PerlinFractal.PerlinSettings settings = PerlinBenchmarks.settings("STANDARD");
+
+        plan = new OctavePlan(settings, PerlinFractal.makeSampler(settings, new TableNoise(values, gradients)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public double pixels() {
+        // One row of pixels, a row further down each time
+
+        double total = 0;
+
+        for (int x = 0; x < SIZE; x++)
+            for (int k = 0; k < plan.blends.length; k++)
+                total += plan.octave(k, x, y);
+
+        y = (y + 1) % SIZE;
+
+        return total;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(StandardAllocationBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        for (RunResult run : new Runner(options).run()) {
+            Result<?> bytes = run.getSecondaryResults().get("gc.alloc.rate.norm");
+            double perPixel = bytes.getScore();
+
+            System.out.printf("STANDARD octave loop: %.4f bytes per pixel%n", perPixel);
+
+            // Anything really made is at least 16 bytes, so less than one byte a pixel
+            // is just the measuring itself
+
+            if (perPixel >= 1) {
+                System.out.println("FAILED: the STANDARD path allocates");
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package application;
+
+import fractal.Progress;
+import javafx.concurrent.Task;
+import javafx.scene.image.WritableImage;
+
+import java.util.function.Function;
+
+/**
+ * A render that runs in the background, off the JavaFX application thread.
+ *
+ * The render itself is given a Progress, which is hooked up to this task's progress
+ * (so a ProgressBar can be bound to it) and which gets cancelled when the task does,
+ * so cancelling the task stops the engine at the end of the row it is working on.
+ */
+class RenderTask extends Task<WritableImage> {
+    private final Progress progress = new Progress((done, total) -> updateProgress(done, total));
+
+    private final Function<Progress, WritableImage> render;
+
+    RenderTask(Function<Progress, WritableImage> render) {
+        this.render = render;
+    }
+
+    @Override
+    protected WritableImage call() {
+        return render.apply(progress);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        progress.cancel();
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
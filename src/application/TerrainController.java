@@ -1,6 +1,8 @@
 package application;
 
 import fractal.DisplaceFractal;
+import fractal.Heightfield;
+import fractal.HeightfieldExporter;
 import fractal.PerlinFractal;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.FXCollections;
@@ -13,6 +15,7 @@ import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelReader;
 import javafx.scene.image.WritableImage;
 import javafx.scene.input.MouseEvent;
@@ -25,7 +28,14 @@ import javafx.stage.Stage;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 
 public class TerrainController {
@@ -99,9 +109,24 @@ public class TerrainController {
     @FXML
     private RadioButton rawOutput;
 
+    @FXML
+    private RadioButton raw16LEOutput;
+
+    @FXML
+    private RadioButton raw16BEOutput;
+
+    @FXML
+    private RadioButton pfmOutput;
+
     @FXML
     private CheckBox overwrite;
 
+    @FXML
+    private ProgressBar progressBar;
+
+    @FXML
+    private Button cancel;
+
     @FXML
     private Canvas canvas1;
 
@@ -124,10 +149,34 @@ public class TerrainController {
 
     private WritableImage wimarray[];
 
+    // The full precision heights behind each image, only worked out if they get saved
+    private List<Supplier<Heightfield>> heightsList;
+
     private int selectedCanvas;
 
     private Stage stage;
 
+    // The last fractals rendered and the images they made, kept so that moving a
+    // brightness/contrast slider can redo just the coloring of that image
+    private PerlinFractal lastPerlin;
+
+    private WritableImage lastPerlinImage;
+
+    private DisplaceFractal lastDisplace;
+
+    private WritableImage lastDisplaceImage;
+
+    // Renders are run one at a time on this thread, so the UI never freezes while
+    // a big image is being made
+    private final ExecutorService renderThread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Render");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // The render that is running (or waiting to run) right now, if any
+    private RenderTask currentRender;
+
 
     public TerrainController() {
     }
@@ -158,7 +207,18 @@ public class TerrainController {
         sharpen.setLabelFormatter(new SliderLabeler());
         dispSharpen.setLabelFormatter(new SliderLabeler());
 
+        // These settings only change the coloring, so the last image is remade
+        // from its saved noise straight away instead of waiting for a new render
+
+        sharpen.valueProperty().addListener((a, b, c) -> perlinRemap());
+        freq.valueProperty().addListener((a, b, c) -> perlinRemap());
+        post.selectedProperty().addListener((a, b, c) -> perlinRemap());
+
+        dispSharpen.valueProperty().addListener((a, b, c) -> displacementRemap());
+        dispPost.selectedProperty().addListener((a, b, c) -> displacementRemap());
+
         wimarray = new WritableImage[3];
+        heightsList = new ArrayList<>(Collections.nCopies(3, null));
 
         canvases = new Canvas[3];
 
@@ -200,11 +260,7 @@ public class TerrainController {
 
     @FXML
     void displacementRender(ActionEvent event) {
-        DisplaceFractal.DisplaceSettings dispSettings = new DisplaceFractal.DisplaceSettings();
-        dispSettings.contrast = (int) dispSharpen.getValue();
-        dispSettings.roughness = (int) roughSlide.getValue();
-        dispSettings.mountainSize = (int) mountSize.getValue();
-        dispSettings.postSmooth = dispPost.isSelected();
+        DisplaceFractal.DisplaceSettings dispSettings = displacementSettings();
 
         int size = 0;
         if (sizeOne.isSelected())
@@ -217,9 +273,36 @@ public class TerrainController {
             size = 1025;
 
         DisplaceFractal df = new DisplaceFractal(size);
-        WritableImage im = df.render(dispSettings);
-        addImage(im);
 
+        startRender(new RenderTask(progress -> df.render(dispSettings, progress)), im -> {
+            addImage(im, () -> df.heights(dispSettings));
+
+            lastDisplace = df;
+            lastDisplaceImage = im;
+        });
+    }
+
+    private DisplaceFractal.DisplaceSettings displacementSettings() {
+        DisplaceFractal.DisplaceSettings dispSettings = new DisplaceFractal.DisplaceSettings();
+        dispSettings.contrast = (int) dispSharpen.getValue();
+        dispSettings.roughness = (int) roughSlide.getValue();
+        dispSettings.mountainSize = (int) mountSize.getValue();
+        dispSettings.postSmooth = dispPost.isSelected();
+        dispSettings.hashedNoise = true;
+        dispSettings.parallel = true;
+        return dispSettings;
+    }
+
+    private void displacementRemap() {
+        DisplaceFractal.DisplaceSettings dispSettings = displacementSettings();
+
+        if (lastDisplace == null || !lastDisplace.canRemap(dispSettings))
+            return;
+
+        WritableImage im = lastDisplace.remap(dispSettings);
+        DisplaceFractal df = lastDisplace;
+        replaceImage(lastDisplaceImage, im, () -> df.heights(dispSettings));
+        lastDisplaceImage = im;
     }
 
     void textChanged(ObservableValue o, String oldVal, String newVal) {
@@ -242,6 +325,68 @@ public class TerrainController {
             size = v;
         } catch (Exception e) {
         }
+        PerlinFractal.PerlinSettings pset = perlinSettings();
+
+        PerlinFractal pf = new PerlinFractal(size);
+
+        startRender(new RenderTask(progress -> pf.render(pset, progress)), im -> {
+            addImage(im, () -> pf.heights(pset));
+
+            lastPerlin = pf;
+            lastPerlinImage = im;
+        });
+    }
+
+    private void startRender(RenderTask task, Consumer<WritableImage> done) {
+        // Start a render in the background.  Any render that is still going is out
+        // of date now, so it gets cancelled and its image (if it manages to finish
+        // anyway) is thrown away.
+
+        if (currentRender != null)
+            currentRender.cancel();
+
+        currentRender = task;
+
+        progressBar.progressProperty().bind(task.progressProperty());
+        cancel.setDisable(false);
+
+        task.setOnSucceeded(e -> {
+            if (task == currentRender) {
+                renderFinished();
+                done.accept(task.getValue());
+            }
+        });
+
+        task.setOnCancelled(e -> {
+            if (task == currentRender)
+                renderFinished();
+        });
+
+        task.setOnFailed(e -> {
+            if (task == currentRender) {
+                renderFinished();
+                new Alert(Alert.AlertType.ERROR, "Render failed: " + task.getException()).showAndWait();
+            }
+        });
+
+        renderThread.execute(task);
+    }
+
+    private void renderFinished() {
+        currentRender = null;
+
+        progressBar.progressProperty().unbind();
+        progressBar.setProgress(0);
+        cancel.setDisable(true);
+    }
+
+    @FXML
+    void cancelRender() {
+        if (currentRender != null)
+            currentRender.cancel();
+    }
+
+    private PerlinFractal.PerlinSettings perlinSettings() {
         PerlinFractal.PerlinSettings pset = new PerlinFractal.PerlinSettings();
         pset.blends = (int) sBlends.getValue();
         pset.preSmooth = pre.isSelected();
@@ -249,19 +394,30 @@ public class TerrainController {
         pset.maxBright = (int) sharpen.getValue();
         pset.freqReduc = (int) freq.getValue();
         pset.interp = interpBox.getSelectionModel().getSelectedIndex();
+        pset.parallel = true;
+        pset.vectorized = true;
+        pset.separable = true;
+        pset.keepOctaves = true;
+        return pset;
+    }
 
-        PerlinFractal pf = new PerlinFractal(size);
-
+    private void perlinRemap() {
+        PerlinFractal.PerlinSettings pset = perlinSettings();
 
-        WritableImage im = pf.render(pset);
+        if (lastPerlin == null || !lastPerlin.canRemap(pset))
+            return;
 
-        addImage(im);
+        WritableImage im = lastPerlin.remap(pset);
+        PerlinFractal pf = lastPerlin;
+        replaceImage(lastPerlinImage, im, () -> pf.heights(pset));
+        lastPerlinImage = im;
     }
 
-    private void addImage(WritableImage theImage) {
+    private void addImage(WritableImage theImage, Supplier<Heightfield> heights) {
         for (int i = 0; i < 3; i++) {
             if (wimarray[i] == null || overwrite.isSelected()) {
                 wimarray[i] = theImage;
+                heightsList.set(i, heights);
                 GraphicsContext gc = canvases[i].getGraphicsContext2D();
                 gc.drawImage(theImage, 0, 0);
                 return;
@@ -269,11 +425,27 @@ public class TerrainController {
         }
     }
 
+    private void replaceImage(WritableImage oldImage, WritableImage newImage, Supplier<Heightfield> heights) {
+        // Swap newImage in wherever oldImage is still being shown.  If it has been
+        // removed or overwritten since, there is nothing to update.
+
+        for (int i = 0; i < 3; i++) {
+            if (wimarray[i] != null && wimarray[i] == oldImage) {
+                wimarray[i] = newImage;
+                heightsList.set(i, heights);
+                GraphicsContext gc = canvases[i].getGraphicsContext2D();
+                gc.drawImage(newImage, 0, 0);
+                return;
+            }
+        }
+    }
+
     @FXML
     void removeImage() {
         if (selectedCanvas == -1) return;
 
         wimarray[selectedCanvas] = null;
+        heightsList.set(selectedCanvas, null);
         GraphicsContext gc = canvases[selectedCanvas].getGraphicsContext2D();
         gc.setFill(Color.BLACK);
         gc.fillRect(0, 0, 128, 128);
@@ -313,6 +485,8 @@ public class TerrainController {
         fileChooser.setTitle("Choose Save Location");
         if (bmpOutput.isSelected())
             fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Bitmap Image", "*.bmp"));
+        else if (pfmOutput.isSelected())
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Portable Float Map", "*.pfm"));
         else
             fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Raw Binary", "*.raw"));
 
@@ -338,25 +512,35 @@ public class TerrainController {
                 } catch (Exception e) {
                     new Alert(Alert.AlertType.ERROR, "Failed to save file").showAndWait();
                 }
-            } else {
+            } else if (rawOutput.isSelected()) {
+                // 8 bit raw is the gray image as shown, read back out in one go
                 try {
-                    FileOutputStream out = new FileOutputStream(f);
                     Image im = wimarray[selectedCanvas];
                     PixelReader pr = im.getPixelReader();
                     int w = (int) im.getWidth();
-                    for (int i = 0; i < w; i++) {
-                        for (int j = 0; j < w; j++) {
-                            int c = (int) (pr.getColor(j, i).getRed() * 255);
-                            out.write(c);
-                        }
-                    }
-                    out.close();
+                    int h = (int) im.getHeight();
+                    int[] pixels = new int[w * h];
+                    pr.getPixels(0, 0, w, h, PixelFormat.getIntArgbInstance(), pixels, 0, w);
+                    HeightfieldExporter.writeRaw8(f.toPath(), w, h, pixels);
 
                 } catch (Exception e) {
                     new Alert(Alert.AlertType.ERROR, "Failed to save file").showAndWait();
                 }
+            } else {
+                // The other formats save the full precision heights, not the image
+                try {
+                    Heightfield heights = heightsList.get(selectedCanvas).get();
 
+                    if (pfmOutput.isSelected())
+                        HeightfieldExporter.writePfm(f.toPath(), heights);
+                    else if (raw16BEOutput.isSelected())
+                        HeightfieldExporter.writeRaw16(f.toPath(), heights, ByteOrder.BIG_ENDIAN);
+                    else
+                        HeightfieldExporter.writeRaw16(f.toPath(), heights, ByteOrder.LITTLE_ENDIAN);
 
+                } catch (Exception e) {
+                    new Alert(Alert.AlertType.ERROR, "Failed to save file").showAndWait();
+                }
             }
 
 
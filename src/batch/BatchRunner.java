@@ -0,0 +1,128 @@
+/*
+ * This class makes terrain maps from the command line, with no window and no JavaFX,
+ * so it can be run on a headless build machine.
+ *
+ * Usage:  BatchRunner [-threads n] jobfile
+ *
+ * The job file has one job per line (see Job for the format).  Blank lines and lines
+ * starting with # are skipped.  The jobs are run on a fixed pool of worker threads
+ * (one per core unless -threads says otherwise), so no matter how many jobs are in
+ * the file only that many are ever running at once.
+ *
+ * As each job finishes, its wall time and throughput (megapixels per second) are
+ * printed.  At the end the totals for the whole batch are printed, and the exit
+ * code is 1 if any job failed.
+ */
+
+package batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BatchRunner {
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        String jobFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else
+                jobFile = args[i];
+        }
+
+        if (jobFile == null) {
+            System.err.println("Usage: BatchRunner [-threads n] jobfile");
+            System.exit(2);
+        }
+
+        List<Job> jobs;
+
+        try {
+            jobs = readJobs(new File(jobFile));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        System.exit(run(jobs, threads) ? 0 : 1);
+    }
+
+    static List<Job> readJobs(File file) throws IOException {
+        // Read every job up front, so a typo on the last line is caught before
+        // the first job has been started
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        List<Job> jobs = new ArrayList<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String text = lines.get(i).trim();
+
+            if (text.isEmpty() || text.startsWith("#"))
+                continue;
+
+            try {
+                jobs.add(new Job(i + 1, text));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(file + ":" + (i + 1) + ": " + e.getMessage());
+            }
+        }
+
+        return jobs;
+    }
+
+    static boolean run(List<Job> jobs, int threads) throws InterruptedException {
+        // Run every job on the pool and report how each one did
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong pixels = new AtomicLong();
+
+        long start = System.nanoTime();
+
+        for (Job job : jobs) {
+            pool.execute(() -> {
+                long jobStart = System.nanoTime();
+
+                try {
+                    job.run();
+                } catch (Exception | OutOfMemoryError e) {
+                    failed.incrementAndGet();
+                    System.out.printf("line %d: %s FAILED: %s%n", job.line, job.out, e);
+                    return;
+                }
+
+                double seconds = (System.nanoTime() - jobStart) / 1e9;
+                pixels.addAndGet(job.pixels());
+
+                System.out.printf("line %d: %s %dx%d -> %s  %.1f ms  %.2f Mpx/s%n", job.line, job.engine,
+                        job.size, job.size, job.out, seconds * 1000, job.pixels() / seconds / 1e6);
+            });
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int done = jobs.size() - failed.get();
+
+        System.out.printf("%d of %d jobs done on %d threads in %.2f s  (%.2f jobs/s, %.2f Mpx/s)%n", done,
+                jobs.size(), threads, seconds, done / seconds, pixels.get() / seconds / 1e6);
+
+        return failed.get() == 0;
+    }
+}
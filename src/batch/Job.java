@@ -0,0 +1,410 @@
+/*
+ * This class holds one line of a batch job file (see BatchRunner) and knows how to run it.
+ *
+ * A line is a list of key=value pairs separated by spaces, for example
+ *
+ * 	engine=perlin size=1025 seed=42 blends=6 interp=cosine out=maps/hills.png
+ *
+ * engine, size, seed and out are the job itself.  For displace, tileSize=n builds the
+ * terrain out of n x n tiles (see DisplaceTiles), so size can be anything instead of
+ * having to be 2^n + 1.  Every other key is the name of a
+ * public field in the engine's settings class (PerlinSettings or DisplaceSettings), so
+ * anything the UI can set can be set here too.  interp can be given by name (linear,
+ * cosine, cubic, standard) or by number.  Anything left out gets the same default the
+ * UI starts with.
+ *
+ * Keys starting with erosion. are fields of ErosionSettings, and giving any of them
+ * wears the raw heights down with Erosion before they are finished, using the job's
+ * seed.  For example erosion.iterations=200 erosion.parallel=true.
+ *
+ * normals=file and hillshade=file also write a normal map and a shaded relief image,
+ * worked out from the finished full precision heights (see Relief).  Keys starting
+ * with relief. are fields of ReliefSettings, for example relief.normalFormat=1 for
+ * octahedral normals.  Those files are written the same way as out: .raw gets the
+ * bytes of each pixel (3 for RGB8 normals, 2 for octahedral ones, 1 for the
+ * hillshade) and anything else goes to ImageIO, octahedral normals as a 16 bit gray
+ * image.
+ *
+ * The output format comes from the extension of out: .raw is the 8 bit gray image, .r16
+ * is the heights as 16 bit little endian raw and .pfm is the heights as 32 bit floats
+ * (see HeightfieldExporter).  .f32 is the heights as 32 bit little endian floats with
+ * no header, made out of core: the file is memory mapped and the terrain is made
+ * straight into it (see MappedHeightfield), so it can be much bigger than the heap.
+ * Perlin .f32 jobs need hashedNoise=true, since the noise tables would be as big as
+ * the terrain.  With it the terrain is the same one the job makes in any other format
+ * (with postSmooth, up to one float step off, since it is smoothed as floats).
+ * .htf is the heights as 32 bit floats in squeezed tiles with an index, which can be
+ * read back a piece at a time (see TiledHeightfield).
+ * Anything else is written by ImageIO, for example .png.
+ *
+ * cache=dir keeps the raw heights in a TerrainCache in that directory, so a job that
+ * asks for a terrain some earlier job (or run) already made just reads it back.  Jobs
+ * in one batch that use the same directory share the cache in memory as well.  It
+ * doesn't work with tileSize or .f32 files.
+ *
+ * Nothing in here touches JavaFX, the engines are only asked for raw heights and gray
+ * levels.
+ */
+
+package batch;
+
+import fractal.DisplaceFractal;
+import fractal.DisplaceTiles;
+import fractal.Erosion;
+import fractal.Heightfield;
+import fractal.HeightfieldExporter;
+import fractal.MappedHeightfield;
+import fractal.PerlinFractal;
+import fractal.Relief;
+import fractal.TerrainCache;
+import fractal.TiledHeightfield;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class Job {
+    private static final List<String> INTERP_NAMES = Arrays.asList("linear", "cosine", "cubic", "standard");
+
+    // Most bytes of terrains each cache keeps in memory
+    private static final long CACHE_BYTES = 256L << 20;
+
+    // One cache for each cache directory, shared by every job in the batch
+    private static final Map<File, TerrainCache> caches = new HashMap<>();
+
+    final int line;
+
+    final String engine;
+    final int size;
+    final long seed;
+    final File out;
+
+    // null unless asked for
+    private final File normals, hillshade, cache;
+
+    // 0 unless a displace terrain is built out of tiles
+    final int tileSize;
+
+    // Only the one for this job's engine is used
+    private final PerlinFractal.PerlinSettings perlin = new PerlinFractal.PerlinSettings();
+    private final DisplaceFractal.DisplaceSettings displace = new DisplaceFractal.DisplaceSettings();
+
+    // null unless the job has any erosion. keys
+    private Erosion.ErosionSettings erosion;
+
+    private final Relief.ReliefSettings relief = new Relief.ReliefSettings();
+
+    Job(int line, String text) {
+        this.line = line;
+
+        // Defaults, the same as the sliders start at in the UI
+
+        perlin.blends = 4;
+        perlin.maxBright = 100;
+
+        displace.roughness = 15;
+        displace.mountainSize = 20;
+        displace.contrast = 100;
+
+        // Split the line up first, since the engine has to be known before any
+        // settings can be put anywhere
+
+        Map<String, String> pairs = new LinkedHashMap<>();
+
+        for (String pair : text.trim().split("\\s+")) {
+            int eq = pair.indexOf('=');
+            if (eq < 1)
+                throw new IllegalArgumentException("expected key=value, got \"" + pair + "\"");
+
+            pairs.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+
+        String engine = pairs.getOrDefault("engine", "perlin").toLowerCase();
+        int size = -1;
+        int tileSize = 0;
+        long seed = System.nanoTime();
+        File out = null;
+        File normals = null, hillshade = null, cache = null;
+
+        if (!engine.equals("perlin") && !engine.equals("displace"))
+            throw new IllegalArgumentException("unknown engine \"" + engine + "\"");
+
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            String key = pair.getKey();
+            String value = pair.getValue();
+
+            switch (key) {
+                case "engine":
+                    break;
+
+                case "size":
+                    size = Integer.parseInt(value);
+                    break;
+
+                case "tileSize":
+                    tileSize = Integer.parseInt(value);
+                    break;
+
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+
+                case "out":
+                    out = new File(value);
+                    break;
+
+                case "normals":
+                    normals = new File(value);
+                    break;
+
+                case "hillshade":
+                    hillshade = new File(value);
+                    break;
+
+                case "cache":
+                    cache = new File(value).getAbsoluteFile();
+                    break;
+
+                case "interp":
+                    int interp = INTERP_NAMES.indexOf(value.toLowerCase());
+                    perlin.interp = (interp >= 0) ? interp : Integer.parseInt(value);
+                    break;
+
+                default:
+                    if (key.startsWith("erosion.")) {
+                        if (erosion == null)
+                            erosion = new Erosion.ErosionSettings();
+
+                        setField(erosion, key.substring("erosion.".length()), value);
+                        break;
+                    }
+
+                    if (key.startsWith("relief.")) {
+                        setField(relief, key.substring("relief.".length()), value);
+                        break;
+                    }
+
+                    // Anything else goes straight into the settings for the engine
+                    setField(engine.equals("displace") ? displace : perlin, key, value);
+            }
+        }
+
+        if (out == null)
+            throw new IllegalArgumentException("no out= given");
+
+        // Same default size as the UI uses for each engine
+
+        if (size == -1)
+            size = engine.equals("perlin") ? 200 : 513;
+
+        // Diamond square only works on squares that are one more than a power of two,
+        // unless the terrain is made out of tiles that are
+
+        if (engine.equals("displace") && tileSize == 0 && (size < 3 || Integer.bitCount(size - 1) != 1))
+            throw new IllegalArgumentException("displace size has to be 2^n + 1, got " + size);
+
+        if (tileSize != 0 && !engine.equals("displace"))
+            throw new IllegalArgumentException("tileSize only works with engine=displace");
+
+        if (tileSize != 0 && (tileSize < 3 || Integer.bitCount(tileSize - 1) != 1))
+            throw new IllegalArgumentException("tileSize has to be 2^n + 1, got " + tileSize);
+
+        if (size < 1)
+            throw new IllegalArgumentException("size has to be at least 1, got " + size);
+
+        if (erosion != null && out.getName().toLowerCase().endsWith(".f32"))
+            throw new IllegalArgumentException("erosion needs the whole terrain in memory, it can't make .f32 files");
+
+        if ((normals != null || hillshade != null) && out.getName().toLowerCase().endsWith(".f32"))
+            throw new IllegalArgumentException("normals and hillshade can't be made along with .f32 files");
+
+        if (engine.equals("perlin") && !perlin.hashedNoise && out.getName().toLowerCase().endsWith(".f32"))
+            throw new IllegalArgumentException("perlin .f32 files are made out of core, which needs hashedNoise=true");
+
+        if (cache != null && (tileSize != 0 || out.getName().toLowerCase().endsWith(".f32")))
+            throw new IllegalArgumentException("cache doesn't work with tileSize or .f32 files");
+
+        this.engine = engine;
+        this.size = size;
+        this.seed = seed;
+        this.out = out;
+        this.normals = normals;
+        this.hillshade = hillshade;
+        this.cache = cache;
+
+        // The job's seed goes into the settings too, which makes the same terrain as
+        // giving it to the engine and lets the terrain be cached
+
+        perlin.seeded = true;
+        perlin.seed = seed;
+
+        displace.seeded = true;
+        displace.seed = seed;
+        this.tileSize = tileSize;
+    }
+
+    private static void setField(Object settings, String key, String value) {
+        Field field;
+
+        try {
+            field = settings.getClass().getField(key);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("unknown setting \"" + key + "\"");
+        }
+
+        try {
+            if (field.getType() == boolean.class)
+                field.setBoolean(settings, Boolean.parseBoolean(value));
+            else if (field.getType() == long.class)
+                field.setLong(settings, Long.parseLong(value));
+            else if (field.getType() == double.class)
+                field.setDouble(settings, Double.parseDouble(value));
+            else
+                field.setInt(settings, Integer.parseInt(value));
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("can't set \"" + key + "\"");
+        }
+    }
+
+    void run() throws IOException {
+        // Make the terrain and write it out
+
+        String type = typeOf(out);
+
+        for (File file : new File[]{out, normals, hillshade}) {
+            File dir = (file != null) ? file.getAbsoluteFile().getParentFile() : null;
+            if (dir != null)
+                dir.mkdirs();
+        }
+
+        if (type.equals("f32")) {
+            runMapped();
+            return;
+        }
+
+        // .pfm, .r16 (16 bit little endian raw) and .htf files get the full precision
+        // heights, everything else gets the gray image
+
+        boolean heightsOnly = type.equals("pfm") || type.equals("r16") || type.equals("htf");
+        boolean finished = heightsOnly || normals != null || hillshade != null;
+
+        Heightfield heights;
+        int[] grays;
+
+        if (engine.equals("perlin")) {
+            PerlinFractal pf = new PerlinFractal(size, seed);
+            Heightfield raw = (cache != null) ? cache().perlin(size, perlin) : pf.generate(perlin);
+            erode(raw);
+
+            heights = finished ? pf.finish(raw, perlin) : null;
+            grays = heightsOnly ? null : pf.toGray(raw, perlin);
+        } else {
+            DisplaceFractal df = new DisplaceFractal(size, seed);
+            Heightfield raw = (tileSize != 0)
+                    ? new DisplaceTiles(tileSize, seed, displace).region(0, 0, size, size)
+                    : (cache != null) ? cache().displace(size, displace) : df.generate(displace);
+            erode(raw);
+
+            heights = finished ? df.finish(raw, displace) : null;
+            grays = heightsOnly ? null : df.toGray(raw, displace);
+        }
+
+        if (type.equals("pfm"))
+            HeightfieldExporter.writePfm(out.toPath(), heights);
+        else if (type.equals("r16"))
+            HeightfieldExporter.writeRaw16(out.toPath(), heights, ByteOrder.LITTLE_ENDIAN);
+        else if (type.equals("htf"))
+            TiledHeightfield.write(out.toPath(), heights, TiledHeightfield.DEFAULT_TILE_SIZE,
+                    engine.equals("perlin") ? perlin.parallel : displace.parallel);
+        else
+            write(out, type, grays, 1);
+
+        if (normals != null || hillshade != null)
+            writeRelief(heights);
+    }
+
+    private void writeRelief(Heightfield heights) throws IOException {
+        Relief made = Relief.of(heights, relief);
+
+        if (normals != null)
+            write(normals, typeOf(normals), made.getNormals(), (relief.normalFormat == Relief.OCTAHEDRAL16) ? 2 : 3);
+
+        if (hillshade != null)
+            write(hillshade, typeOf(hillshade), made.getShade(), 1);
+    }
+
+    private static String typeOf(File file) {
+        String name = file.getName();
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    private TerrainCache cache() throws IOException {
+        synchronized (caches) {
+            TerrainCache shared = caches.get(cache);
+
+            if (shared == null) {
+                shared = new TerrainCache(cache.toPath(), CACHE_BYTES);
+                caches.put(cache, shared);
+            }
+
+            return shared;
+        }
+    }
+
+    private void erode(Heightfield heights) {
+        if (erosion != null)
+            Erosion.erode(seed, erosion, heights);
+    }
+
+    private void runMapped() throws IOException {
+        // Make the heights straight into the output file, nothing the size of the
+        // whole terrain is ever put on the heap
+
+        try (MappedHeightfield heights = new MappedHeightfield(out.toPath(), size, size)) {
+            if (engine.equals("perlin"))
+                new PerlinFractal(size, seed).generateMapped(perlin, heights);
+            else if (tileSize != 0)
+                new DisplaceTiles(tileSize, seed, displace).generateMapped(heights);
+            else
+                new DisplaceFractal(size, seed).generateMapped(displace, heights);
+        }
+    }
+
+    private void write(File file, String type, int[] pixels, int bytes) throws IOException {
+        // .raw files get bytes bytes per pixel, row after row, which for the gray image
+        // is the same as the UI saves it.  Anything else is handed to ImageIO as an 8
+        // bit gray image (1 byte), a 16 bit gray image (2 bytes) or an RGB image
+        // (3 bytes), with the file type taken from the extension.
+
+        if (type.equals("raw")) {
+            HeightfieldExporter.writeRaw(file.toPath(), size, size, pixels, bytes);
+            return;
+        }
+
+        BufferedImage image;
+
+        if (bytes == 3) {
+            image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, size, size, pixels, 0, size);
+        } else {
+            image = new BufferedImage(size, size,
+                    (bytes == 2) ? BufferedImage.TYPE_USHORT_GRAY : BufferedImage.TYPE_BYTE_GRAY);
+            image.getRaster().setPixels(0, 0, size, size, pixels);
+        }
+
+        if (!ImageIO.write(image, type, file))
+            throw new IOException("no image writer for ." + type + " files");
+    }
+
+    long pixels() {
+        return (long) size * size;
+    }
+}
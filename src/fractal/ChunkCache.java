@@ -0,0 +1,222 @@
+/*
+ * This class hands out square chunks of a Perlin terrain that goes on forever, for
+ * things like a game server that streams the land around players as they move.
+ *
+ * Chunk cx, cy covers the pixels from (cx * chunkSize, cy * chunkSize) to one short of
+ * ((cx + 1) * chunkSize, (cy + 1) * chunkSize).  The chunks are all cut out of the same
+ * endless hashed noise (see PerlinFractal.generateRegion), so neighbouring chunks line
+ * up with no seams no matter what order they are made in.
+ *
+ * Chunks are kept in a least-recently-used cache that is limited by the number of
+ * bytes the chunks take up, not the number of chunks.  When it goes over the limit,
+ * the chunks that haven't been asked for in the longest time are thrown out.
+ *
+ * Chunks are made in the background on an Executor.  If a chunk is asked for again
+ * while it is still being made, the second caller just waits for the first one to
+ * finish instead of making it twice.
+ *
+ * The chunks hold raw noise values, the same as PerlinFractal.generate, so maxBright
+ * and postSmooth don't apply to them.  All of the other settings do.
+ *
+ * Every call hands back its own copy of the chunk, so the caller can change it (with
+ * Erosion, say) without changing what everyone else gets from the cache.
+ *
+ * The pixel positions are ints, so the world ends where they would run out: a chunk
+ * has to lie completely between Integer.MIN_VALUE and Integer.MAX_VALUE, which is
+ * about 2 billion pixels out in every direction.  Asking for one past that throws an
+ * IllegalArgumentException instead of wrapping around to some other part of the
+ * terrain.
+ */
+
+package fractal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+public class ChunkCache {
+    private final int chunkSize;
+
+    private final long maxBytes;
+
+    private final Executor executor;
+
+    // Finished chunks, in least to most recently used order
+    private final LinkedHashMap<Key, Heightfield> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    // Chunks that are being made right now
+    private final ConcurrentHashMap<Key, CompletableFuture<Heightfield>> loading = new ConcurrentHashMap<>();
+
+    public ChunkCache(int chunkSize, long maxBytes) {
+        this(chunkSize, maxBytes, ForkJoinPool.commonPool());
+    }
+
+    public ChunkCache(int chunkSize, long maxBytes, Executor executor) {
+        this.chunkSize = chunkSize;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    public Heightfield getChunk(long seed, PerlinFractal.PerlinSettings settings, int cx, int cy) {
+        // Get a chunk, waiting for it to be made if it isn't cached yet
+        return getChunkAsync(seed, settings, cx, cy).join();
+    }
+
+    public CompletableFuture<Heightfield> getChunkAsync(long seed, PerlinFractal.PerlinSettings settings,
+                                                        int cx, int cy) {
+        // Where the chunk starts, worked out in long so a chunk too far out is
+        // caught instead of wrapping around
+
+        long left = (long) cx * chunkSize, top = (long) cy * chunkSize;
+
+        if (left < Integer.MIN_VALUE || top < Integer.MIN_VALUE || left + chunkSize - 1 > Integer.MAX_VALUE
+                || top + chunkSize - 1 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Chunk " + cx + ", " + cy + " is past the edge of the world");
+
+        Key key = new Key(seed, settings, cx, cy);
+
+        synchronized (chunks) {
+            Heightfield chunk = chunks.get(key);
+            if (chunk != null)
+                return CompletableFuture.completedFuture(copyOf(chunk));
+        }
+
+        CompletableFuture<Heightfield> made = new CompletableFuture<>();
+        CompletableFuture<Heightfield> already = loading.putIfAbsent(key, made);
+
+        if (already != null)
+            return already.thenApply(ChunkCache::copyOf);
+
+        // The chunk may have finished and left the loading map between checking the
+        // cache and getting here, so look again before making it
+
+        synchronized (chunks) {
+            Heightfield chunk = chunks.get(key);
+            if (chunk != null) {
+                loading.remove(key, made);
+                made.complete(chunk);
+                return CompletableFuture.completedFuture(copyOf(chunk));
+            }
+        }
+
+        executor.execute(() -> {
+            try {
+                Heightfield chunk = PerlinFractal.generateRegion(seed, key.settings, (int) left, (int) top,
+                        chunkSize, chunkSize);
+
+                // Put it in the cache before taking it out of the loading map, so
+                // that there is never a moment when it can't be found in either one
+                store(key, chunk);
+                loading.remove(key, made);
+                made.complete(chunk);
+            } catch (Throwable e) {
+                loading.remove(key, made);
+                made.completeExceptionally(e);
+            }
+        });
+
+        // The cached chunk stays with the cache, the caller gets a copy
+        return made.thenApply(ChunkCache::copyOf);
+    }
+
+    public long getCachedBytes() {
+        synchronized (chunks) {
+            return bytes;
+        }
+    }
+
+    public void clear() {
+        synchronized (chunks) {
+            chunks.clear();
+            bytes = 0;
+        }
+    }
+
+    private void store(Key key, Heightfield chunk) {
+        synchronized (chunks) {
+            if (chunks.put(key, chunk) == null)
+                bytes += sizeOf(chunk);
+
+            // Throw out the least recently used chunks until it fits again, but
+            // always keep the one that was just made
+
+            Iterator<Map.Entry<Key, Heightfield>> oldest = chunks.entrySet().iterator();
+
+            while (bytes > maxBytes && chunks.size() > 1) {
+                Map.Entry<Key, Heightfield> entry = oldest.next();
+                bytes -= sizeOf(entry.getValue());
+                oldest.remove();
+            }
+        }
+    }
+
+    private static Heightfield copyOf(Heightfield chunk) {
+        Heightfield copy = new Heightfield(chunk.getWidth(), chunk.getHeight());
+        System.arraycopy(chunk.getData(), 0, copy.getData(), 0, copy.getData().length);
+        return copy;
+    }
+
+    private static long sizeOf(Heightfield chunk) {
+        return 8L * chunk.getWidth() * chunk.getHeight();
+    }
+
+    private static class Key {
+        // Everything that changes what a chunk looks like
+
+        final long seed;
+        final int cx, cy;
+        final int blends, interp, freqReduc;
+        final boolean preSmooth, fastMath;
+
+        // A private copy of the settings used to make the chunk, so later changes
+        // to the caller's settings object don't change what this key means
+        final PerlinFractal.PerlinSettings settings;
+
+        Key(long seed, PerlinFractal.PerlinSettings from, int cx, int cy) {
+            this.seed = seed;
+            this.cx = cx;
+            this.cy = cy;
+            blends = from.blends;
+            interp = from.interp;
+            freqReduc = from.freqReduc;
+            preSmooth = from.preSmooth;
+            fastMath = from.fastMath;
+
+            settings = new PerlinFractal.PerlinSettings();
+            settings.blends = blends;
+            settings.interp = interp;
+            settings.freqReduc = freqReduc;
+            settings.preSmooth = preSmooth;
+            settings.fastMath = fastMath;
+            settings.vectorized = from.vectorized;
+            settings.separable = from.separable;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key k = (Key) o;
+            return seed == k.seed && cx == k.cx && cy == k.cy && blends == k.blends && interp == k.interp
+                    && freqReduc == k.freqReduc && preSmooth == k.preSmooth && fastMath == k.fastMath;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = HashNoise.hash(seed, cx, cy);
+            h = h * 31 + blends;
+            h = h * 31 + interp;
+            h = h * 31 + freqReduc;
+            h = h * 31 + (preSmooth ? 1 : 0);
+            h = h * 31 + (fastMath ? 1 : 0);
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
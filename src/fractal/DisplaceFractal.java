@@ -10,10 +10,8 @@
 
 package fractal;
 
-import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
 
-import java.awt.*;
 import java.util.Date;
 import java.util.Random;
 
@@ -22,16 +20,30 @@ public class DisplaceFractal {
 
     private Random rand;
 
+    // The heights from the last render before any smoothing or contrast, kept so
+    // that those can be changed afterwards without making the terrain again
+    private Heightfield raw;
+
+    // The settings the raw heights were made with
+    private int rawRoughness, rawMountainSize;
+    private boolean rawSeeded;
+    private long rawSeed;
+
     public DisplaceFractal(int size) {
-        long time = (new Date()).getTime();
-        rand = new Random(time);
+        this(size, (new Date()).getTime());
+    }
+
+    public DisplaceFractal(int size, long seed) {
+        rand = new Random(seed);
 
         this.size = size;
     }
 
     public static class DisplaceSettings {
         public int roughness, mountainSize, contrast;
-        public boolean postSmooth;
+        public boolean postSmooth, parallel, hashedNoise, seeded;
+
+        public long seed;
 
 		/* This is a helper class that is used to pass some variables around in this
 		 * class and also between the User Interface panel and this class.
@@ -48,27 +60,194 @@ public class DisplaceFractal {
 		 * contrast - this number is turned into a multiplier that effects the final image
 		 * only.  It is used to brighten up or darken down the final pixels that make
 		 * up the image.
+		 * 
+		 * hashedNoise - If true, the random perturbation for each point is made from a hash
+		 * of the seed, the level and the point (see HashNoise) instead of being taken from
+		 * the shared Random one after another.  The points of a level then no longer have
+		 * to be made in order.  The terrain looks the same in style but comes out different
+		 * from the Random version for the same seed.
+		 * 
+		 * parallel - If true (and hashedNoise is on), the rows of squares in each level are
+		 * split up into bands that are run on all of the cores.  The terrain comes out
+		 * exactly the same as the single threaded one for the same seed.  Without
+		 * hashedNoise the points have to come out of the Random in order, so this does
+		 * nothing.
+		 * 
+		 * seeded, seed - If seeded is true, every render and generate starts over from
+		 * seed, so the same settings always make the same terrain (and it can be looked
+		 * up in a TerrainCache).  Otherwise each one carries on from the seed the
+		 * DisplaceFractal was made with and makes a new terrain.
 		 */
     }
 
     public WritableImage render(DisplaceSettings settings) {
-        long time = (new Date()).getTime();
-        rand = new Random(time);
+        return render(settings, new Progress());
+    }
 
-        WritableImage image = new WritableImage(size, size);
-        PixelWriter writer = image.getPixelWriter();
+    public WritableImage render(DisplaceSettings settings, Progress progress) {
+        // progress hears about the terrain as it is made and colored, and can be
+        // used to cancel the render
 
-        //BufferedImage image = new BufferedImage(size,size,BufferedImage.TYPE_INT_RGB);
+        progress.begin(heightPoints() + size);
 
+        Heightfield made = makeHeights(settings, progress);
 
-        // Init the heightfield with numbers used to represent that it is empty
+        // Only keep the heights once they are finished, so a cancelled render
+        // leaves the last one that did finish ready for remap()
 
-        double[][] heightField = new double[size][size];
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                heightField[i][j] = 500; // Arbitrary blank indicaor
-            }
+        raw = made;
+        rawRoughness = settings.roughness;
+        rawMountainSize = settings.mountainSize;
+        rawSeeded = settings.seeded;
+        rawSeed = settings.seed;
+
+        return GrayImage.of(size, size, toGray(raw, settings, progress));
+    }
+
+    public Heightfield generate(DisplaceSettings settings) {
+        return generate(settings, new Progress());
+    }
+
+    public Heightfield generate(DisplaceSettings settings, Progress progress) {
+        // Make the raw terrain heights, from -1 to 1, before any smoothing or
+        // contrast.  Nothing in here needs JavaFX.
+
+        progress.begin(heightPoints());
+
+        return makeHeights(settings, progress);
+    }
+
+    private long heightPoints() {
+        // The number of Progress steps it takes to make the heights.  Each square
+        // makes one center point and about two new edge points, which over every
+        // level adds up to one step for every point but the four corners (give
+        // or take a few along the edges).
+        return (long) (size - 1) * (size - 1) - 1;
+    }
+
+    private Heightfield makeHeights(DisplaceSettings settings, Progress progress) {
+        return makeHeights(settings, progress, wholeSweep(settings));
+    }
+
+    private Sweep wholeSweep(DisplaceSettings settings) {
+        // Hashed noise gets its own seed out of the Random, so every render still
+        // makes a new terrain but the same starting seed always makes the same ones
+
+        reseed(settings);
+
+        boolean hashed = settings.hashedNoise;
+        long seed = hashed ? rand.nextLong() : 0;
+
+        return new Sweep(hashed, seed, 0, 0, false);
+    }
+
+    private void reseed(DisplaceSettings settings) {
+        // A seeded terrain starts over from its own seed every time
+        if (settings.seeded)
+            rand = new Random(settings.seed);
+    }
+
+    public Heightfield generateTile(DisplaceSettings settings, long seed, int tileX, int tileY) {
+        // Make the raw heights for one tile of a terrain that goes on forever in every
+        // direction, made of size x size tiles that overlap by one row and column: tile
+        // tileX, tileY covers the points from tileX * (size - 1), tileY * (size - 1).
+        // See DisplaceTiles for putting them together.
+        //
+        // The noise is always hashed, on the points' place in the whole terrain
+        // instead of in the tile, and the points along the tile's edges are made only
+        // out of other points on the same edge.  So a tile's edge comes out exactly the
+        // same as the matching edge of the tile next to it, whichever one is made first
+        // and wherever it is made, and the tiles fit together with no seams.
+
+        // The origin is worked out in long, so tiles far out don't wrap around onto
+        // some other part of the terrain
+
+        return makeHeights(settings, new Progress(),
+                new Sweep(true, seed, (long) tileX * (size - 1), (long) tileY * (size - 1), true));
+    }
+
+    private interface Points {
+        // Where a sweep keeps its heights: the array of a heightfield, or a mapped
+        // file for generateMapped()
+
+        double get(int x, int y);
+
+        void set(int x, int y, double value);
+    }
+
+    private static final class ArrayPoints implements Points {
+        private final double[] heights;
+        private final int size;
+
+        ArrayPoints(double[] heights, int size) {
+            this.heights = heights;
+            this.size = size;
+        }
+
+        @Override
+        public double get(int x, int y) {
+            return heights[y * size + x];
+        }
+
+        @Override
+        public void set(int x, int y, double value) {
+            heights[y * size + x] = value;
+        }
+    }
+
+    private class Sweep {
+        // The things that stay the same through one run of sweepLevels().  originX,
+        // originY is where the field sits in the whole terrain, which is what hashed
+        // noise is worked out on.  If tiled is on, the edge points are only made out of
+        // the edge (see generateTile()).
+
+        final boolean hashed, tiled;
+        final long seed;
+        final long originX, originY;
+
+        Points points;
+
+        Sweep(boolean hashed, long seed, long originX, long originY, boolean tiled) {
+            this.hashed = hashed;
+            this.seed = seed;
+            this.originX = originX;
+            this.originY = originY;
+            this.tiled = tiled;
+        }
+
+        double perturb(double heightColor, double level, long levelSeed, int x, int y) {
+            return DisplaceFractal.this.perturb(heightColor, level, hashed, levelSeed, originX + x, originY + y);
         }
+    }
+
+    private Heightfield makeHeights(DisplaceSettings settings, Progress progress, Sweep sweep) {
+        // Make the heights straight into the flat array in a new heightfield
+
+        Heightfield heightField = new Heightfield(size);
+        double[] heights = heightField.getData();
+
+        sweepLevels(settings, progress, sweep, new ArrayPoints(heights, size));
+
+        return heightField;
+    }
+
+    private void sweepLevels(DisplaceSettings settings, Progress progress, Sweep sweep, Points points) {
+        // Make the heights with the square and diamond steps, one level at a time.
+        // There's no blank marker to fill in first and nothing gets made twice: a
+        // square's top edge point was already made by the square above it and its
+        // left edge point by the square to its left, so those two are only made along
+        // the top and left of the field.  Every point is set before it is read, so
+        // points can start out holding anything.
+
+        sweep.points = points;
+
+        boolean hashed = sweep.hashed;
+        long seed = sweep.seed;
+
+        // The rows of squares can only be run at the same time if nothing has to
+        // come out of the shared Random in order
+
+        boolean parallel = hashed && settings.parallel;
 
         // Read the mountainSize variable from the settings structure and then turn
         // it into a double which forms a nice multiplier.
@@ -78,205 +257,246 @@ public class DisplaceFractal {
         // Now, intialize the four corners of the array with random heights, taking
         // care to limit them with the maxHeight value
 
-        heightField[0][0] = rand.nextDouble() * maxHeight;
-        heightField[0][size - 1] = rand.nextDouble() * maxHeight;
-        heightField[size - 1][0] = rand.nextDouble() * maxHeight;
-        heightField[size - 1][size - 1] = rand.nextDouble() * maxHeight;
+        long left0 = sweep.originX, top0 = sweep.originY;
+        long right0 = left0 + size - 1, bottom0 = top0 + size - 1;
 
+        points.set(0, 0, cornerHeight(hashed, seed, left0, top0, maxHeight));
+        points.set(0, size - 1, cornerHeight(hashed, seed, left0, bottom0, maxHeight));
+        points.set(size - 1, 0, cornerHeight(hashed, seed, right0, top0, maxHeight));
+        points.set(size - 1, size - 1, cornerHeight(hashed, seed, right0, bottom0, maxHeight));
 
-        // Now, run the recursive method (although actually tail-recursion) that starts
-        // the generation of the image
-        makeSession(size - 1, heightField, 1, maxHeight, settings);
+        double scale = maxHeight;
 
-        // Image now made, check to see if it should be smoothed
+        for (int w = size - 1; w > 1; w /= 2) {
+            int width = w;
+            int half = width / 2;
+            double level = scale;
+            long levelSeed = HashNoise.hash(seed, width, 0);
 
-        if (settings.postSmooth) {
-            double[][] smooth = new double[size][size];
+            // Number of squares across the image at this width, each finished row of
+            // squares is reported to progress (which also checks for a cancel)
+            int across = (size - 1) / width;
 
-            for (int i = 0; i < size; i++) {
-                for (int j = 0; j < size; j++) {
-                    smooth[j][i] = smoothNoise(j, i, heightField);
-                }
-            }
-            heightField = smooth;
-        }
+            // Square step: the center of every square is the average of its four
+            // corners plus a random perturbation.  No square reads another square's
+            // center, so the rows can be done in any order.
 
-        double color;
+            RowBands.run(across, parallel, r -> {
+                int top = r * width;
 
-        // Read in the contrast variable from settings and turn it into a double
-        // that will be used as a multiplier (divider actually)
-        // on the final pixel values in the array
+                for (int left = 0; left < size - 1; left += width) {
+                    double height = points.get(left, top) + points.get(left + width, top)
+                            + points.get(left + width, top + width) + points.get(left, top + width);
 
-        double colorMultiplier = (double) (settings.contrast / 100.0);
+                    points.set(left + half, top + half, sweep.perturb(height / 4, level, levelSeed,
+                            left + half, top + half));
+                }
 
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                // The color values in the array are between -1 and 1
-                color = heightField[j][i] / colorMultiplier;
+                progress.step(across);
+            });
 
-                color = color * 127 + 127;
+            // Diamond step: the edge centers of every square, top, right, bottom and
+            // left, the same order the random numbers have always been used in.  These
+            // only read corners and square centers, and each row of squares makes
+            // different edge points, so again the rows can be done in any order.
 
-                int aColor = (int) color;
+            RowBands.run(across, parallel, r -> {
+                int top = r * width;
 
-                if (aColor > 255)
-                    aColor = 255;
-                else if (aColor < 0)
-                    aColor = 0;
+                for (int left = 0; left < size - 1; left += width) {
+                    if (top == 0)
+                        makeDiamondHeight(sweep, left + half, top, half, level, levelSeed);
 
-                // Set the pixel value in the image
+                    makeDiamondHeight(sweep, left + width, top + half, half, level, levelSeed);
+                    makeDiamondHeight(sweep, left + half, top + width, half, level, levelSeed);
 
-                writer.setColor(j, i, javafx.scene.paint.Color.grayRgb(aColor));
-            }
+                    if (left == 0)
+                        makeDiamondHeight(sweep, left, top + half, half, level, levelSeed);
+                }
+
+                progress.step(2 * across);
+            });
+
+            scale = scale * ((double) settings.roughness / 20.0);
         }
-        return image;
     }
 
-    private void makeSession(int width, double[][] heightField, int repeats, double level, DisplaceSettings settings) {
-        // For each iteration, make a set of center-square points, then make a set
-        // of diamond points (edge-centers), and then recurse again.  Each time it recurses
-        // the number of points made will increase by a factor of 4 (represented by
-        // the integer repeats
+    private void makeDiamondHeight(Sweep sweep, int x, int y, int half, double level, long levelSeed) {
+        // Average the points half away from x, y (the diamond around it), leaving out
+        // any that fall off the edge of the array instead of wrapping around, and put
+        // the average plus a random perturbation at x, y
 
-        if (width == 1) // iterations can stop
+        Points points = sweep.points;
+
+        if (sweep.tiled && (x == 0 || x == size - 1 || y == 0 || y == size - 1)) {
+            // On a tile's edge only the two neighbors along the edge count, which the
+            // tile on the other side of the edge has as well
+
+            double height = (x == 0 || x == size - 1)
+                    ? points.get(x, y - half) + points.get(x, y + half)
+                    : points.get(x - half, y) + points.get(x + half, y);
+
+            points.set(x, y, sweep.perturb(height / 2, level, levelSeed, x, y));
             return;
+        }
 
-        int left = 0, top = 0;
+        double height = 0;
+        int total = 0;
 
-        for (int i = 0; i < repeats; i++) {
-            makeSquareHeight(new Point(left, top), width, heightField, level);
+        if (x - half > -1) {
+            total++;
+            height += points.get(x - half, y);
+        }
 
-            left += width;
+        if (y - half > -1) {
+            total++;
+            height += points.get(x, y - half);
+        }
 
-            if (left == size - 1) {
-                left = 0;
-                top += width;
-            }
+        if (x + half < size) {
+            total++;
+            height += points.get(x + half, y);
         }
 
-        left = 0;
-        top = 0;
-        for (int i = 0; i < repeats; i++) {
-            makeDiamonds(new Point(left, top), width, heightField, level);
+        if (y + half < size) {
+            total++;
+            height += points.get(x, y + half);
+        }
 
-            left += width;
+        points.set(x, y, sweep.perturb(height / total, level, levelSeed, x, y));
+    }
 
-            if (left == size - 1) {
-                left = 0;
-                top += width;
+    public void generateMapped(DisplaceSettings settings, MappedHeightfield out) {
+        // Make the raw terrain heights straight into out, which can be far bigger
+        // than the heap, with the post smoothing done if it is on.  out has to be
+        // size x size, but what is in it already doesn't matter.
+        //
+        // This is the same terrain generate() makes for the same seed, from the same
+        // sweeps, only kept as floats.  Each level sweeps the whole field top to
+        // bottom, once for the square centers and once for the edge points, so the
+        // file is read in order.
+
+        if (out.getWidth() != size || out.getHeight() != size)
+            throw new IllegalArgumentException("The heightfield has to be " + size + " x " + size);
+
+        sweepLevels(settings, new Progress(), wholeSweep(settings), new Points() {
+            @Override
+            public double get(int x, int y) {
+                return out.get(x, y);
             }
-        }
 
-        level = level * ((double) settings.roughness / 20.0);
+            @Override
+            public void set(int x, int y, double value) {
+                out.set(x, y, value);
+            }
+        });
 
-        makeSession(width / 2, heightField, repeats * 4, level, settings);
+        if (settings.postSmooth)
+            Smoothing.smooth(out);
     }
 
-    private void makeSquareHeight(Point p, int width, double[][] heightField, double level) {
-        // This averages the heights of the four points of the square represented by the
-        // corner at Point p and the int width.  It then takes the average, adds a random
-        // perturbation and then sets the value into the array at the midpoint
-        // of the square
+    public boolean canRemap(DisplaceSettings settings) {
+        // True if an image with these settings can be made out of the heights from
+        // the last render, because they only differ in contrast or postSmooth
 
-        if (heightField[p.x + width / 2][p.y + width / 2] < 2) // if position already has number
-            return;
+        return raw != null && rawRoughness == settings.roughness && rawMountainSize == settings.mountainSize
+                && (!settings.seeded || (rawSeeded && rawSeed == settings.seed));
+    }
 
-        double height = heightField[p.x][p.y] + heightField[p.x + width][p.y]
-                + heightField[p.x + width][p.y + width] + heightField[p.x][p.y + width];
+    public WritableImage remap(DisplaceSettings settings) {
+        // Turn the heights from the last render into an image using these settings.
+        // This only redoes the cheap end of render(), so the same terrain comes back
+        // with a new contrast or postSmooth almost straight away.
 
-        height = height / 4;
+        if (!canRemap(settings))
+            throw new IllegalStateException("The terrain has to be rendered again for these settings");
 
-        heightField[p.x + width / 2][p.y + width / 2] = randomColor(height, level);
+        return GrayImage.of(size, size, toGray(raw, settings));
     }
 
-    private void makeDiamondHeight(Point p, int width, double[][] heightField, double level) {
-        // This method takes in the coordinate Point p which represents a spot in the array
-        // that a height value has to be put it.
-
-        // It then locates the four surrounding edges (the diamond points) and averages them
-        // up to figure out what height value should be put at Point p.
+    public Heightfield heights(DisplaceSettings settings) {
+        // The heights behind the image remap(settings) makes, with full precision,
+        // for saving as a heightfield
 
-        // If an average point falls off the edge of the array it is ignored, and not
-        // wrapped around.
+        if (!canRemap(settings))
+            throw new IllegalStateException("The terrain has to be rendered again for these settings");
 
-        if (heightField[p.x][p.y] < 2) // This is true if there is a value
-            return;                    // already in the array location P, so no value
-        // needs to be put there
+        return finish(raw, settings);
+    }
 
-        double height = 0;
-        int total = 0;
+    public Heightfield finish(Heightfield heightField, DisplaceSettings settings) {
+        // Raw heights from generate() with the post smoothing done (if it is on), which
+        // is what toGray() colors in.  If there's no smoothing heightField itself
+        // comes back.
 
-        int xc, yc;
+        if (!settings.postSmooth)
+            return heightField;
 
-        xc = p.x - width / 2;
-        yc = p.y;
+        return Pipeline.from(heightField).smooth().toHeightfield(settings.parallel);
+    }
 
-        if (xc > -1) {
-            total++;
-            height += heightField[xc][yc];
-        }
+    public int[] toGray(Heightfield heightField, DisplaceSettings settings) {
+        // Turn raw heights from generate() into gray levels from 0 to 255, one per
+        // pixel, row after row, without any JavaFX
 
-        xc = p.x;
-        yc = p.y - width / 2;
+        return toGray(heightField, settings, new Progress());
+    }
 
-        if (yc > -1) {
-            total++;
-            height += heightField[xc][yc];
-        }
+    private int[] toGray(Heightfield heightField, DisplaceSettings settings, Progress progress) {
+        // The smoothing (if it is on), contrast and gray levels are all done in one
+        // pass over the heights, a band of rows at a time (see Pipeline)
 
-        xc = p.x + width / 2;
-        yc = p.y;
+        // Read in the contrast variable from settings and turn it into a double
+        // that will be used as a multiplier (divider actually)
+        // on the final pixel values in the array
 
-        if (xc < size) {
-            total++;
-            height += heightField[xc][yc];
-        }
+        double colorMultiplier = (double) (settings.contrast / 100.0);
 
-        xc = p.x;
-        yc = p.y + width / 2;
+        Pipeline pipeline = Pipeline.from(heightField);
 
-        if (yc < size) {
-            total++;
-            height += heightField[xc][yc];
-        }
+        if (settings.postSmooth)
+            pipeline.smooth();
 
-        // the diamond average
-        height = height / total;
+        // The color values in the array are between -1 and 1
 
-        // Place the diamond average, plus a random perturbation, in the array location P
-        heightField[p.x][p.y] = randomColor(height, level);
+        return pipeline.divide(colorMultiplier).scale(127).offset(127).toGray(settings.parallel, progress);
     }
 
-    private void makeDiamonds(Point p, int width, double[][] heightField, double level) {
-        // This method calls the makeDiamondHeight four times, although this is
-        // not recursive since each makeDiamondHeight run finishes up the first time through.
-
-        // This method locates the four diamond points, indentified by Point p
-        // and the int width.  The diamond points are the four edge-centers of this
-        // square.  It then tells each makeDiamondHeight to find the averages for those
-        // four edge-centers and put the proper values in the array
+    private double cornerHeight(boolean hashed, long seed, long x, long y, double maxHeight) {
+        // A random starting height for the corner at x, y, from 0 to maxHeight.  The
+        // hashed ones use the seed of a level one bigger than any real level.
 
-        int dx, dy;
+        if (!hashed)
+            return rand.nextDouble() * maxHeight;
 
-        dx = p.x + width / 2;
-        dy = p.y;
+        return (HashNoise.hash(HashNoise.hash(seed, size, 0), x, y) >>> 11) * 0x1.0p-53 * maxHeight;
+    }
 
-        makeDiamondHeight(new Point(dx, dy), width, heightField, level);
+    private double perturb(double heightColor, double level, boolean hashed, long levelSeed, long x, long y) {
+        return hashed ? hashedColor(heightColor, level, levelSeed, x, y) : randomColor(heightColor, level);
+    }
 
-        dx = p.x + width;
-        dy = p.y + width / 2;
+    private static double hashedColor(double heightColor, double level, long levelSeed, long x, long y) {
+        // The same as randomColor, but the perturbation comes from a hash of the
+        // level's seed and the point, so it doesn't matter which order the points are
+        // made in or on which thread.  The top 53 bits make the size of the change
+        // and the bottom bit its sign.
 
-        makeDiamondHeight(new Point(dx, dy), width, heightField, level);
+        long hash = HashNoise.hash(levelSeed, x, y);
 
-        dx = p.x + width / 2;
-        dy = p.y + width;
+        double change = (hash >>> 11) * 0x1.0p-53 * level;
 
-        makeDiamondHeight(new Point(dx, dy), width, heightField, level);
+        if ((hash & 1) != 0)
+            change = -change;
 
-        dx = p.x;
-        dy = p.y + width / 2;
+        change = heightColor + change;
 
-        makeDiamondHeight(new Point(dx, dy), width, heightField, level);
+        if (change < -1)
+            change = -1;
+        if (change > 1)
+            change = 1;
 
+        return change;
     }
 
     private double randomColor(double heightColor, double level) {
@@ -307,36 +527,9 @@ public class DisplaceFractal {
         return change;
     }
 
-    private double smoothNoise(int x, int y, double[][] noise) {
-
-        // This simply takes the array coordinates surrounding x, y, and adds them all
-        // together and make a weighted average.  This basically smooths out the
-        // pixel x,y and returns the new smoothed out value
-
-        int x1 = (x + size) % size;
-        int y1 = (y + size) % size;
-
-        int x2 = (x1 + size - 1) % size;
-        int y2 = (y1 + size - 1) % size;
-
-        int x3 = (x1 + size + 1) % size;
-        int y3 = (y1 + size + 1) % size;
-
-        int smooth1 = 4;
-        int smooth2 = 8;
-        int smooth3 = 16;
-
-        double corners = (noise[x2][y2] + noise[x3][y2] + noise[x2][y3] + noise[x3][y3])
-                / smooth3;
-        double sides = (noise[x2][y1] + noise[x3][y1] + noise[x1][y2] + noise[x1][y3])
-                / smooth2;
-        double center = noise[x1][y1] / smooth1;
-
-        return corners + sides + center;
-    }
-
     public void setSize(int size) {
         this.size = size;
+        raw = null;
     }
 
 }
@@ -0,0 +1,111 @@
+/*
+ * This class builds diamond square terrains of any size out of tiles.
+ *
+ * Diamond square on its own only makes squares that are one more than a power of two
+ * on a side, and it needs the whole square in memory at once.  Here the terrain is
+ * cut up into tiles of tileSize x tileSize (which does have to be 2^n + 1) that
+ * overlap by one row and column, so tile tileX, tileY starts at point
+ * tileX * (tileSize - 1), tileY * (tileSize - 1).  Every tile is made on its own by
+ * DisplaceFractal.generateTile(), which makes the edges it shares with its neighbors
+ * exactly the same way they do, so the tiles can be made in any order, on any thread
+ * or even on different machines, and still fit together with no seams.
+ *
+ * The terrain goes on forever in every direction (tile numbers can be negative too,
+ * and any int tile number works), and region() cuts any rectangle inside the int
+ * range of points out of it.  The features are never bigger than one tile, so bigger
+ * tiles make broader mountains.
+ *
+ * Post smoothing is not done on tiles or regions, since it needs the points on both
+ * sides of an edge.  generateMapped() does it over the whole terrain when it is on.
+ */
+
+package fractal;
+
+public class DisplaceTiles {
+    private final int tileSize;
+    private final long seed;
+    private final DisplaceFractal.DisplaceSettings settings;
+
+    public DisplaceTiles(int tileSize, long seed, DisplaceFractal.DisplaceSettings settings) {
+        if (tileSize < 3 || Integer.bitCount(tileSize - 1) != 1)
+            throw new IllegalArgumentException("The tile size has to be 2^n + 1, got " + tileSize);
+
+        this.tileSize = tileSize;
+        this.seed = seed;
+        this.settings = settings;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public Heightfield tile(int tileX, int tileY) {
+        return new DisplaceFractal(tileSize).generateTile(settings, seed, tileX, tileY);
+    }
+
+    public Heightfield region(int left, int top, int width, int height) {
+        // Cut the rectangle starting at point left, top out of the terrain, made
+        // out of every tile it touches
+
+        Heightfield region = new Heightfield(width, height);
+        double[] data = region.getData();
+
+        fill(left, top, width, height, (x, y, row, offset, count) ->
+                System.arraycopy(row, offset, data, y * width + x, count));
+
+        return region;
+    }
+
+    public void generateMapped(MappedHeightfield out) {
+        // Fill out, which can be far bigger than the heap, with the terrain from
+        // point 0, 0.  Only one tile is ever in memory.
+
+        fill(0, 0, out.getWidth(), out.getHeight(), out::setRow);
+
+        if (settings.postSmooth)
+            Smoothing.smooth(out);
+    }
+
+    private interface RowSink {
+        // Put count heights from row[offset] on in row y of the rectangle, from x on
+        void accept(int x, int y, double[] row, int offset, int count);
+    }
+
+    private void fill(int left, int top, int width, int height, RowSink sink) {
+        // Make the terrain for the rectangle one tile at a time, handing the part of
+        // each tile that is inside the rectangle to sink a row at a time.  The shared
+        // last row and column of a tile are left to the tile after it, since they are
+        // the same there.
+
+        // Where the tiles start is worked out in long, since near the ends of the
+        // int range the tile after the last point starts past them
+
+        long step = tileSize - 1;
+        long right = (long) left + width, bottom = (long) top + height;
+
+        if (width < 1 || height < 1 || right - 1 > Integer.MAX_VALUE || bottom - 1 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("The rectangle has to be inside the int range of points");
+
+        int firstX = (int) Math.floorDiv(left, step), lastX = (int) Math.floorDiv(right - 1, step);
+        int firstY = (int) Math.floorDiv(top, step), lastY = (int) Math.floorDiv(bottom - 1, step);
+
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            long tileTop = tileY * step;
+            int fromY = (int) Math.max(top, tileTop);
+            int toY = (int) Math.min(bottom, tileTop + step);
+
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                long tileLeft = tileX * step;
+                int fromX = (int) Math.max(left, tileLeft);
+                int toX = (int) Math.min(right, tileLeft + step);
+
+                double[] data = tile(tileX, tileY).getData();
+
+                for (int y = fromY; y < toY; y++) {
+                    int offset = (int) ((y - tileTop) * tileSize + fromX - tileLeft);
+                    sink.accept(fromX - left, y - top, data, offset, toX - fromX);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * This class wears a heightfield down with water and gravity, to take the raw,
+ * too-perfect look off the terrains the engines make.  It works on the raw heights
+ * (before finish() or toGray()), in place.
+ *
+ * Each iteration does two things to every point of the grid:
+ *
+ * 	Hydraulic erosion - rain falls on every point, and the water runs off to the
+ * 		neighbors (left, right, up and down) whose water surface is lower, shared out
+ * 		by how much lower each one is.  Running water picks up sediment (digging the
+ * 		ground out) until it carries as much as its flow can hold, and drops it again
+ * 		where the flow slows down, so valleys get cut and flats get filled in.  Some
+ * 		of the water dries up each time.
+ *
+ * 	Thermal erosion - wherever the ground is steeper than talus, some of it slides
+ * 		down to the lower neighbors, so cliffs crumble into slopes.
+ *
+ * There is a fixed number of iterations, and once they are done any sediment still
+ * in the water is dropped where it is.  Water doesn't run off the edges of the map:
+ * a point past the edge is treated as the point itself, which is never lower.
+ *
+ * Each step is split into two passes over the grid.  The first one works out, for
+ * every point, how much leaves it per unit of drop to its neighbors and writes just
+ * that.  The second one has every point add up what comes in from its neighbors and
+ * what goes out of it, and writes only its own new values.  So no point ever writes
+ * anything another point reads in the same pass, the rows can be run in bands on
+ * every core (see RowBands), and the result is exactly the same however the bands
+ * get split up between the threads.  The rain is made from a hash of the seed, the
+ * iteration and the point (see HashNoise), so it comes out the same every time too.
+ *
+ * The grid needs a second copy of the heights plus water and sediment for every
+ * point, about three and a half times the memory of the heightfield itself.
+ */
+
+package fractal;
+
+public class Erosion {
+
+    public static class ErosionSettings {
+        // Settings for erode().  Heights and rain are measured against the height
+        // range of the field (highest minus lowest point), so the same settings
+        // work on both engines.
+
+        public int iterations = 50;
+
+        public double rain = 0.001, capacity = 0.5, dissolve = 0.1, deposit = 0.1, evaporation = 0.05,
+                talus = 0.01, slip = 0.25;
+
+        public boolean parallel;
+
+		/* iterations - how many rounds of rain, flow and sliding to run.
+		 *
+		 * rain - how much water falls on each point each iteration, as a part of the
+		 * height range.  Each point gets between none and twice this much.
+		 *
+		 * capacity - how much sediment running water can carry, for each bit of water
+		 * that flows out of a point.
+		 *
+		 * dissolve - how much of the spare capacity is dug out of the ground at a point
+		 * each iteration (0 to 1).
+		 *
+		 * deposit - how much of the sediment over capacity is dropped at a point each
+		 * iteration (0 to 1).
+		 *
+		 * evaporation - how much of the water dries up each iteration (0 to 1).
+		 *
+		 * talus - the steepest drop from one point to the next that the ground will hold,
+		 * as a part of the height range.  Anything steeper starts to slide.
+		 *
+		 * slip - how much of the drop over talus slides down each iteration (0 to 1).
+		 *
+		 * parallel - If true, each pass is split up into bands of rows that are run on
+		 * all of the cores.  The terrain comes out exactly the same as the single
+		 * threaded one.
+		 */
+    }
+
+    private final int width, height;
+    private final ErosionSettings settings;
+    private final long seed;
+
+    // The ground, and the copy each iteration's hydraulic pass writes into
+    private final double[] ground, eroded;
+
+    // Water and sediment at each point, and the copies the flow pass writes into
+    private float[] water, sediment, nextWater, nextSediment;
+
+    // What leaves each point for each unit of drop to a neighbor, of water in the
+    // hydraulic step and of ground in the thermal step
+    private final float[] perDrop;
+
+    // rain and talus turned into heights
+    private final double rainHeight, talusHeight;
+
+    private Erosion(long seed, ErosionSettings settings, Heightfield field) {
+        this.seed = seed;
+        this.settings = settings;
+
+        width = field.getWidth();
+        height = field.getHeight();
+        ground = field.getData();
+
+        int points = width * height;
+
+        eroded = new double[points];
+        water = new float[points];
+        sediment = new float[points];
+        nextWater = new float[points];
+        nextSediment = new float[points];
+        perDrop = new float[points];
+
+        double lowest = Double.POSITIVE_INFINITY, highest = Double.NEGATIVE_INFINITY;
+        for (double h : ground) {
+            lowest = Math.min(lowest, h);
+            highest = Math.max(highest, h);
+        }
+
+        double range = (points > 0) ? highest - lowest : 0;
+
+        rainHeight = settings.rain * range;
+        talusHeight = settings.talus * range;
+    }
+
+    public static void erode(long seed, ErosionSettings settings, Heightfield field) {
+        erode(seed, settings, field, new Progress());
+    }
+
+    public static void erode(long seed, ErosionSettings settings, Heightfield field, Progress progress) {
+        // Wear field down in place.  Every pass over the rows is a step of progress
+        // for each row.
+
+        Erosion erosion = new Erosion(seed, settings, field);
+
+        progress.begin((4L * settings.iterations + 2) * erosion.height);
+
+        erosion.run(progress);
+    }
+
+    private void run(Progress progress) {
+        boolean parallel = settings.parallel;
+
+        // The first rain
+
+        long rainSeed = HashNoise.hash(seed, 0, 0);
+
+        RowBands.runBands(height, parallel, progress, (start, end) -> {
+            for (int y = start; y < end; y++)
+                for (int x = 0; x < width; x++)
+                    water[y * width + x] = (float) rainAt(rainSeed, x, y);
+        });
+
+        for (int i = 0; i < settings.iterations; i++) {
+            long nextRain = HashNoise.hash(seed, i + 1, 0);
+
+            RowBands.runBands(height, parallel, progress, this::waterLeaving);
+            RowBands.runBands(height, parallel, progress, (start, end) -> flow(start, end, nextRain));
+
+            float[] swap = water;
+            water = nextWater;
+            nextWater = swap;
+
+            swap = sediment;
+            sediment = nextSediment;
+            nextSediment = swap;
+
+            RowBands.runBands(height, parallel, progress, this::groundLeaving);
+            RowBands.runBands(height, parallel, progress, this::slide);
+        }
+
+        // Whatever the water is still carrying settles where it is
+
+        RowBands.runBands(height, parallel, progress, (start, end) -> {
+            for (int c = start * width; c < end * width; c++)
+                ground[c] += sediment[c];
+        });
+    }
+
+    private double rainAt(long rainSeed, int x, int y) {
+        // Between none and twice the rain, different at every point and iteration
+        return rainHeight * 2 * ((HashNoise.hash(rainSeed, x, y) >>> 11) * 0x1.0p-53);
+    }
+
+    private void waterLeaving(int start, int end) {
+        // Work out how much water leaves each point for each unit its water surface
+        // is above a neighbor's.  At most half of the biggest drop leaves, so the
+        // point never ends up lower than where its water went.
+
+        for (int y = start; y < end; y++) {
+            int row = y * width;
+            int up = (y > 0) ? -width : 0, down = (y < height - 1) ? width : 0;
+
+            for (int x = 0; x < width; x++) {
+                int c = row + x;
+                int left = (x > 0) ? c - 1 : c, right = (x < width - 1) ? c + 1 : c;
+
+                double surface = ground[c] + water[c];
+
+                double d0 = Math.max(0, surface - (ground[left] + water[left]));
+                double d1 = Math.max(0, surface - (ground[right] + water[right]));
+                double d2 = Math.max(0, surface - (ground[c + up] + water[c + up]));
+                double d3 = Math.max(0, surface - (ground[c + down] + water[c + down]));
+
+                double total = d0 + d1 + d2 + d3;
+                double most = Math.max(Math.max(d0, d1), Math.max(d2, d3));
+
+                double moved = Math.min(water[c], most / 2);
+                perDrop[c] = (total > 0) ? (float) (moved / total) : 0;
+            }
+        }
+    }
+
+    private void flow(int start, int end, long nextRain) {
+        // Move the water and its sediment, let it dig or drop sediment, dry some
+        // of it up and rain on it for the next iteration.  Only this point's new
+        // values are written, the ground goes into eroded.
+
+        double keep = 1 - settings.evaporation;
+
+        for (int y = start; y < end; y++) {
+            int row = y * width;
+            int up = (y > 0) ? -width : 0, down = (y < height - 1) ? width : 0;
+
+            for (int x = 0; x < width; x++) {
+                int c = row + x;
+                int left = (x > 0) ? c - 1 : c, right = (x < width - 1) ? c + 1 : c;
+
+                double surface = ground[c] + water[c];
+
+                double total = 0, waterIn = 0, sedimentIn = 0;
+
+                // Water runs out to the lower neighbors and in from the higher ones
+
+                for (int k = 0; k < 4; k++) {
+                    int n = (k == 0) ? left : (k == 1) ? right : (k == 2) ? c + up : c + down;
+
+                    double drop = surface - (ground[n] + water[n]);
+
+                    if (drop > 0) {
+                        total += drop;
+                    } else if (drop < 0 && perDrop[n] > 0) {
+                        double in = perDrop[n] * -drop;
+                        waterIn += in;
+                        sedimentIn += sediment[n] * (in / water[n]);
+                    }
+                }
+
+                double moved = perDrop[c] * total;
+                double sedimentOut = (moved > 0) ? sediment[c] * (moved / water[c]) : 0;
+
+                // (perDrop is rounded to a float, so these can come out a hair below 0)
+                double wet = Math.max(0, water[c] - moved + waterIn);
+                double carried = Math.max(0, sediment[c] - sedimentOut + sedimentIn);
+                double level = ground[c];
+
+                // Faster flow (more water going out) can carry more
+
+                double holds = settings.capacity * moved;
+
+                if (carried > holds) {
+                    double dropped = settings.deposit * (carried - holds);
+                    level += dropped;
+                    carried -= dropped;
+                } else {
+                    double dug = settings.dissolve * (holds - carried);
+                    level -= dug;
+                    carried += dug;
+                }
+
+                eroded[c] = level;
+                nextWater[c] = (float) (wet * keep + rainAt(nextRain, x, y));
+                nextSediment[c] = (float) carried;
+            }
+        }
+    }
+
+    private void groundLeaving(int start, int end) {
+        // Work out how much ground slides off each point for each unit it is above
+        // talus over a neighbor.  At most half of the biggest slip goes, for the
+        // same reason as the water.
+
+        for (int y = start; y < end; y++) {
+            int row = y * width;
+            int up = (y > 0) ? -width : 0, down = (y < height - 1) ? width : 0;
+
+            for (int x = 0; x < width; x++) {
+                int c = row + x;
+                int left = (x > 0) ? c - 1 : c, right = (x < width - 1) ? c + 1 : c;
+
+                double top = eroded[c] - talusHeight;
+
+                double d0 = Math.max(0, top - eroded[left]);
+                double d1 = Math.max(0, top - eroded[right]);
+                double d2 = Math.max(0, top - eroded[c + up]);
+                double d3 = Math.max(0, top - eroded[c + down]);
+
+                double total = d0 + d1 + d2 + d3;
+                double most = Math.max(Math.max(d0, d1), Math.max(d2, d3));
+
+                double moved = settings.slip * most / 2;
+                perDrop[c] = (total > 0) ? (float) (moved / total) : 0;
+            }
+        }
+    }
+
+    private void slide(int start, int end) {
+        // Move the sliding ground, writing the finished heights back into ground
+
+        for (int y = start; y < end; y++) {
+            int row = y * width;
+            int up = (y > 0) ? -width : 0, down = (y < height - 1) ? width : 0;
+
+            for (int x = 0; x < width; x++) {
+                int c = row + x;
+                int left = (x > 0) ? c - 1 : c, right = (x < width - 1) ? c + 1 : c;
+
+                double here = eroded[c];
+                double top = here - talusHeight;
+
+                double total = Math.max(0, top - eroded[left]) + Math.max(0, top - eroded[right])
+                        + Math.max(0, top - eroded[c + up]) + Math.max(0, top - eroded[c + down]);
+
+                double in = slideIn(here, left) + slideIn(here, right) + slideIn(here, c + up)
+                        + slideIn(here, c + down);
+
+                ground[c] = here - perDrop[c] * total + in;
+            }
+        }
+    }
+
+    private double slideIn(double here, int n) {
+        // Ground that slides here from neighbor n
+        return perDrop[n] * Math.max(0, eroded[n] - here - talusHeight);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * This class turns the gray levels from toGray() into a JavaFX image.
+ *
+ * It used to be done with writer.setColor(x, y, Color.grayRgb(gray)) for every pixel,
+ * which makes a new Color object for each pixel and goes through the slow one pixel
+ * at a time path of the PixelWriter.  On a 2049 x 2049 image that is over four million
+ * Color objects.  Instead the grays are packed into ARGB ints in one pass and the whole
+ * image is handed to the PixelWriter in a single setPixels call.
+ *
+ * (A PixelBuffer could wrap the array straight into an image and save that one copy,
+ * but it is meant for updating the same image over and over.  Every render here makes
+ * a new image once, so the copy is a small part of the render, and setPixels works
+ * the same on every JavaFX.)
+ */
+
+package fractal;
+
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+class GrayImage {
+
+    static WritableImage of(int width, int height, int[] grays) {
+        // Make an image out of grays (0 to 255, row after row).  The grays array is
+        // turned into the pixels in place, so it can't be used for anything afterwards.
+
+        for (int i = 0; i < grays.length; i++) {
+            int g = grays[i];
+            grays[i] = 0xFF000000 | (g << 16) | (g << 8) | g;
+        }
+
+        WritableImage image = new WritableImage(width, height);
+        image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), grays, 0, width);
+
+        return image;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * A noise source that doesn't store anything.  The value at each lattice point is made
+ * on the spot by scrambling (hashing) the seed together with the point's x and y, so
+ * the same seed and point always give the same value.
+ *
+ * This means there are no seed arrays to allocate or fill before a render starts, any
+ * point (and so any tile of an image) can be worked out on its own in any order or on
+ * any thread, and the noise can go on forever instead of stopping at the image size.
+ *
+ * The gradient vectors for Mr. Perlin's method are picked out of a fixed table of
+ * GRADIENTS vectors spread evenly around the circle, so they are already length one.
+ */
+
+package fractal;
+
+class HashNoise implements NoiseSource {
+    private static final int GRADIENTS = 256;
+
+    private static final double[] gradX = new double[GRADIENTS], gradY = new double[GRADIENTS];
+
+    static {
+        for (int i = 0; i < GRADIENTS; i++) {
+            double angle = 2 * Math.PI * i / GRADIENTS;
+            gradX[i] = Math.cos(angle);
+            gradY[i] = Math.sin(angle);
+        }
+    }
+
+    // Large odd constants used to spread x and y out before mixing
+    private static final long X_MIX = 0x9E3779B97F4A7C15L, Y_MIX = 0xC2B2AE3D27D4EB4FL;
+
+    private final long seed;
+
+    // If more than 0, points wrap around every period steps so the image tiles
+    private final int period;
+
+    HashNoise(long seed, int period) {
+        this.seed = seed;
+        this.period = period;
+    }
+
+    static long hash(long seed, long x, long y) {
+        // The splitmix64 finisher: every bit of the input affects every bit of the output
+
+        long h = seed + x * X_MIX + y * Y_MIX;
+
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private long hash(int x, int y) {
+        if (period > 0) {
+            if (x < 0 || x >= period)
+                x = Math.floorMod(x, period);
+            if (y < 0 || y >= period)
+                y = Math.floorMod(y, period);
+        }
+        return hash(seed, x, y);
+    }
+
+    @Override
+    public double value(int x, int y) {
+        // Top 53 bits of the hash make a double between 0 and 1
+        return (hash(x, y) >>> 11) * 0x1.0p-53;
+    }
+
+    private int gradient(int x, int y) {
+        // Which of the GRADIENTS vectors point x, y gets
+        return (int) hash(x, y) & (GRADIENTS - 1);
+    }
+
+    @Override
+    public double gradientX(int x, int y) {
+        return gradX[gradient(x, y)];
+    }
+
+    @Override
+    public double gradientY(int x, int y) {
+        return gradY[gradient(x, y)];
+    }
+
+    @Override
+    public double dot(int x, int y, double dx, double dy) {
+        // Hash the point once for both halves of the vector
+        int g = gradient(x, y);
+        return gradX[g] * dx + gradY[g] * dy;
+    }
+
+    @Override
+    public void gradients(int[] columns, int y, double[] outX, double[] outY) {
+        for (int j = 0; j < columns.length; j++) {
+            int g = gradient(columns[j], y);
+            outX[j] = gradX[g];
+            outY[j] = gradY[g];
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This class holds a grid of height (or noise) values for the fractal engines.
+ *
+ * All of the values live in one flat array, one row after another (row-major).
+ * So the value for column x of row y is at data[y * width + x], and walking along
+ * a row walks straight through memory.  This replaces the old double[size][size]
+ * arrays, which needed one object per column and were indexed [x][y] even though
+ * every loop in the program runs along the rows.
+ *
+ * The tight loops in the engines can grab the array with getData() and index it
+ * directly, everything else should just use get() and set().
+ */
+
+package fractal;
+
+public class Heightfield {
+    private final int width, height;
+
+    private final double[] data;
+
+    public Heightfield(int size) {
+        this(size, size);
+    }
+
+    public Heightfield(int width, int height) {
+        this.width = width;
+        this.height = height;
+        data = new double[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double get(int x, int y) {
+        return data[y * width + x];
+    }
+
+    public void set(int x, int y, double value) {
+        data[y * width + x] = value;
+    }
+
+    public void fill(double value) {
+        java.util.Arrays.fill(data, value);
+    }
+
+    public double[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This class saves images and heightfields to disk in a few raw formats.
+ *
+ * 	8 bit RAW   - one byte per pixel, row after row.  This is the gray image exactly as
+ * 		it is shown on screen.  Packed pixels like normal maps (see Relief) can be
+ * 		written the same way with two or three bytes each, high byte first.
+ *
+ * 	16 bit RAW  - two bytes per pixel, row after row, either low byte first (little
+ * 		endian) or high byte first (big endian).  The heights are stretched so the
+ * 		lowest one in the field is 0 and the highest is 65535, so none of the 16 bits
+ * 		go to waste.
+ *
+ * 	PFM         - the heights exactly as the engine made them, as 32 bit floats, in the
+ * 		Portable Float Map format: a short text header ("Pf", the width and height,
+ * 		and -1.0 to say the floats are little endian) followed by the rows from the
+ * 		bottom of the image up to the top, which is the order PFM uses.
+ *
+ * Everything is written through a FileChannel from one big direct buffer, which is
+ * filled with as many rows as fit, written out in one go, and then filled again.
+ * There is no per-pixel call into the file system at all.
+ */
+
+package fractal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class HeightfieldExporter {
+    // Size of the buffer that the rows are gathered in before being written
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    public static void writeRaw8(Path path, int width, int height, int[] pixels) throws IOException {
+        // Write the low 8 bits of every pixel, which is the gray level for both
+        // toGray() levels and gray ARGB pixels read back out of an image
+        writeRaw(path, width, height, pixels, 1);
+    }
+
+    public static void writeRaw(Path path, int width, int height, int[] pixels, int bytes) throws IOException {
+        // Write the low bytes bytes of every pixel, high byte first
+
+        int rowBytes = width * bytes;
+
+        try (FileChannel channel = open(path)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, rowBytes));
+
+            for (int i = 0; i < height; i++) {
+                if (buffer.remaining() < rowBytes)
+                    drain(channel, buffer);
+
+                for (int j = 0; j < width; j++) {
+                    int pixel = pixels[i * width + j];
+
+                    for (int b = bytes - 1; b >= 0; b--)
+                        buffer.put((byte) (pixel >>> (8 * b)));
+                }
+            }
+
+            drain(channel, buffer);
+        }
+    }
+
+    public static void writeRaw16(Path path, Heightfield heights, ByteOrder order) throws IOException {
+        int width = heights.getWidth();
+        int height = heights.getHeight();
+        double[] data = heights.getData();
+
+        // Find the range of the heights, so it can be spread over all 16 bits
+
+        double low = Double.POSITIVE_INFINITY, high = Double.NEGATIVE_INFINITY;
+
+        for (double h : data) {
+            low = Math.min(low, h);
+            high = Math.max(high, h);
+        }
+
+        double scale = (high > low) ? 65535 / (high - low) : 0;
+
+        try (FileChannel channel = open(path)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, 2 * width)).order(order);
+
+            for (int i = 0; i < height; i++) {
+                if (buffer.remaining() < 2 * width)
+                    drain(channel, buffer);
+
+                for (int j = 0; j < width; j++)
+                    buffer.putShort((short) Math.round((data[i * width + j] - low) * scale));
+            }
+
+            drain(channel, buffer);
+        }
+    }
+
+    public static void writePfm(Path path, Heightfield heights) throws IOException {
+        int width = heights.getWidth();
+        int height = heights.getHeight();
+        double[] data = heights.getData();
+
+        try (FileChannel channel = open(path)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_BYTES, 4 * width))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.put(("Pf\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+
+            // PFM rows go from the bottom of the image to the top
+
+            for (int i = height - 1; i >= 0; i--) {
+                if (buffer.remaining() < 4 * width)
+                    drain(channel, buffer);
+
+                for (int j = 0; j < width; j++)
+                    buffer.putFloat((float) data[i * width + j]);
+            }
+
+            drain(channel, buffer);
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        // Write out everything in the buffer and make it ready to be filled again
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
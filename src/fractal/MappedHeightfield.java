@@ -0,0 +1,122 @@
+/*
+ * This class is a heightfield that lives in a file on disk instead of in the Java heap,
+ * for terrains too big to fit in memory (a 32769 x 32769 terrain is 8 GB of doubles).
+ *
+ * The file is nothing but the heights, as 32 bit little endian floats, one row after
+ * another, with no header.  Most terrain tools can read that straight in as a "raw
+ * float" or ".f32" heightmap.
+ *
+ * The file is memory mapped (FileChannel.map), so the operating system pages the parts
+ * that are being worked on in and out on its own and the heap never has to hold any of
+ * it.  A single mapping can't be bigger than 2 GB, so the file is mapped in bands of
+ * whole rows, each up to MAP_BYTES long, and a row never crosses from one band into the
+ * next.
+ *
+ * get() and set() can be used from any number of threads at once, as long as they
+ * don't write to the same spot.
+ */
+
+package fractal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MappedHeightfield implements Closeable {
+    // Largest single mapping, in bytes
+    private static final long MAP_BYTES = 1L << 30;
+
+    private final int width, height;
+
+    private final FileChannel channel;
+
+    // Each band holds bandRows rows of the file
+    private final int bandRows;
+    private final MappedByteBuffer[] maps;
+    private final FloatBuffer[] bands;
+
+    public MappedHeightfield(Path path, int width, int height) throws IOException {
+        // Make (or replace) the file at path, big enough for width x height heights.
+        // A new file reads back as all zeros.
+
+        this.width = width;
+        this.height = height;
+
+        bandRows = (int) Math.max(1, Math.min(height, MAP_BYTES / (4L * width)));
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        int count = (height + bandRows - 1) / bandRows;
+        maps = new MappedByteBuffer[count];
+        bands = new FloatBuffer[count];
+
+        for (int b = 0; b < count; b++) {
+            long start = (long) b * bandRows * width * 4;
+            long rows = Math.min(bandRows, height - (long) b * bandRows);
+
+            maps[b] = channel.map(FileChannel.MapMode.READ_WRITE, start, rows * width * 4);
+            bands[b] = maps[b].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double get(int x, int y) {
+        return bands[y / bandRows].get((y % bandRows) * width + x);
+    }
+
+    public void set(int x, int y, double value) {
+        bands[y / bandRows].put((y % bandRows) * width + x, (float) value);
+    }
+
+    public void getRow(int y, double[] row, int offset) {
+        // Copy row y into row[offset] .. row[offset + width - 1]
+
+        FloatBuffer band = bands[y / bandRows];
+        int start = (y % bandRows) * width;
+
+        for (int x = 0; x < width; x++)
+            row[offset + x] = band.get(start + x);
+    }
+
+    public void setRow(int y, double[] row, int offset) {
+        // Copy row[offset] .. row[offset + width - 1] into row y
+        setRow(0, y, row, offset, width);
+    }
+
+    public void setRow(int x, int y, double[] row, int offset, int count) {
+        // Copy count heights from row[offset] on into row y, starting at column x
+
+        FloatBuffer band = bands[y / bandRows];
+        int start = (y % bandRows) * width + x;
+
+        for (int i = 0; i < count; i++)
+            band.put(start + i, (float) row[offset + i]);
+    }
+
+    public void flush() {
+        // Make sure everything that has been written is out on disk
+        for (MappedByteBuffer map : maps)
+            map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mappings themselves go away once they are garbage collected, the
+        // file is already complete on disk by then
+        flush();
+        channel.close();
+    }
+}
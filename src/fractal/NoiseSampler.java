@@ -0,0 +1,10 @@
+/*
+ * One interpolation method, picked once per render, that gives back the noise value
+ * at the (fractional) lattice position x, y.  See OctavePlan for how these get used.
+ */
+
+package fractal;
+
+interface NoiseSampler {
+    double sample(double x, double y);
+}
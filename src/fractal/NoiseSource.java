@@ -0,0 +1,41 @@
+/*
+ * The random values that a Perlin image is built from.  Every whole-number lattice
+ * point x, y has a noise value between 0 and 1 (used by the linear, cosine and cubic
+ * interpolation types) and a gradient vector of length one (used by Mr. Perlin's
+ * standard method).
+ *
+ * Lattice points can be anywhere, including negative or past the end of the image.
+ * It is up to the source to wrap them around if it only covers a limited area.
+ */
+
+package fractal;
+
+interface NoiseSource {
+    double value(int x, int y);
+
+    double gradientX(int x, int y);
+
+    double gradientY(int x, int y);
+
+    default double dot(int x, int y, double dx, double dy) {
+        // The gradient at x, y dotted with dx, dy.  Sources that have to work the
+        // gradient out (like HashNoise) should override this to do it only once.
+        return gradientX(x, y) * dx + gradientY(x, y) * dy;
+    }
+
+    // Gather the values for a list of columns along one row into out[].  The columns
+    // are always in increasing order.  Sources that can do this faster than one
+    // value() call at a time should override these.
+
+    default void values(int[] columns, int y, double[] out) {
+        for (int j = 0; j < columns.length; j++)
+            out[j] = value(columns[j], y);
+    }
+
+    default void gradients(int[] columns, int y, double[] outX, double[] outY) {
+        for (int j = 0; j < columns.length; j++) {
+            outX[j] = gradientX(columns[j], y);
+            outY[j] = gradientY(columns[j], y);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This class holds all of the work for a Perlin image that is the same for every pixel.
+ *
+ * Every pixel of a Perlin image is made by adding up a handful of octaves.  Which octaves
+ * are used (blends and freqReduc from the settings), how much each one is divided by,
+ * and which interpolation method is used to sample them never changes during a render.
+ * So this is all worked out once up front, and then the per-pixel loop only has to
+ * look up the samples and add them together.
+ */
+
+package fractal;
+
+class OctavePlan {
+    // The lattice spacing of each octave (biggest first) and the amount that
+    // octave's sample gets divided by when it is added in
+    final int[] blends;
+    final double[] divide;
+
+    final NoiseSampler sampler;
+
+    OctavePlan(PerlinFractal.PerlinSettings settings, NoiseSampler sampler) {
+        this.sampler = sampler;
+
+        int blend = (int) (Math.pow(2.0, (double) settings.blends));
+        int octaves = count(settings.blends, settings.freqReduc);
+
+        blends = new int[octaves];
+        divide = new double[octaves];
+
+        double div = 2;
+        for (int i = 0; i < octaves; i++) {
+            blends[i] = blend;
+            divide[i] = div;
+
+            blend /= 2;
+            div *= 2;
+        }
+    }
+
+    static int count(int blends, int freqReduc) {
+        // The number of octaves that get added up for these settings
+
+        int blend = (int) (Math.pow(2.0, (double) blends));
+
+        // freqReduc cuts out the highest frequency (smallest) octaves.  Work out the
+        // smallest octave that is still wanted.
+
+        double stopper;
+
+        if (freqReduc == 0)
+            stopper = 0;
+        else if (freqReduc == 1)
+            stopper = 1.0 / 32;
+        else if (freqReduc == 2)
+            stopper = 1.0 / 16;
+        else if (freqReduc == 3)
+            stopper = 1.0 / 8;
+        else if (freqReduc == 4)
+            stopper = 1.0 / 4;
+        else
+            stopper = 1.0 / 2;
+
+        int stopLoop = (int) (stopper * (double) blend);
+
+        int octaves = 0;
+        for (int b = blend; b > stopLoop; b /= 2)
+            octaves++;
+
+        return octaves;
+    }
+
+    double octave(int i, int x, int y) {
+        // Octave i's share of pixel x, y.  Adding these up from i = 0 gives the pixel.
+
+        int blend = blends[i];
+        return sampler.sample((double) x / blend, (double) y / blend) / divide[i];
+    }
+}
@@ -18,30 +18,41 @@
 
 package fractal;
 
-import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
 import java.util.Date;
 import java.util.Random;
+import java.util.SplittableRandom;
 
 public class PerlinFractal {
     private Random rand;
 
     private int size;
 
-    private double[][] noise, xNoise, yNoise;
+    private Heightfield noise;
 
-    private static final int LINEAR = 0, COSINE = 1, CUBIC = 2, STANDARD = 3;
+    // Mr. Perlin's gradient vectors, already normalized, packed as x, y pairs
+    // one after another: the vector for point x, y is at [2 * (y * size + x)]
+    private double[] gradients;
 
-    public class DoubleVector {
-        public double x, y;
+    // The raw noise from the last render, kept so that the brightness and postSmooth
+    // (and freqReduc, with keepOctaves) can be changed afterwards without working the
+    // noise out again.  layers[k] holds the first k + 1 octaves added up.  Normally
+    // only the last one, the finished noise, is kept.  With keepOctaves every octave
+    // is worked out and there is one for every k that some freqReduc setting stops
+    // at (the rest are null).
+    private Heightfield[] layers;
 
-        public DoubleVector(double x, double y) {
-            this.x = x;
-            this.y = y;
-        }
-    }
+    // The settings the layers were made with
+    private PerlinSettings layerSettings;
+
+    static final int LINEAR = 0, COSINE = 1, CUBIC = 2, STANDARD = 3;
+
+    // Odd constant used to spread the row numbers out when seeding each row
+    private static final long ROW_SEED_MIX = 0xBF58476D1CE4E5B9L;
+
+    // Most points generateMapped() works out in memory at a time (16 MB of doubles)
+    private static final long MAPPED_BAND_POINTS = 1 << 21;
 
     public static class PerlinSettings {
         // This helper class contains a bunch of settings that
@@ -50,7 +61,10 @@ public class PerlinFractal {
         // of too many method arguments
         public int blends, interp, maxBright, freqReduc;
 
-        public boolean preSmooth, postSmooth;
+        public boolean preSmooth, postSmooth, parallel, vectorized, separable, fastMath,
+                hashedNoise, seeded, keepOctaves;
+
+        public long seed;
 
 		/*  blends - how many different fractals should be created and blended together
 		 * 		to create the final image
@@ -74,30 +88,159 @@ public class PerlinFractal {
 		 * 
 		 * postSmooth - This option, if true, simply smooths the final result image.
 		 * 
+		 * parallel - If true, the seeding and the pixel calculations are split up into
+		 * bands of rows that are run on all of the cores.  The image comes out exactly
+		 * the same as the single threaded one for the same seed.
+		 * 
+		 * vectorized - If true, the image is worked out a whole row at a time with loops
+		 * that the JIT can turn into SIMD instructions (see ScanlineRenderer), instead
+		 * of one pixel at a time.  The image comes out the same either way.
+		 * 
+		 * separable - Only used with vectorized.  If true, each octave interpolates
+		 * every lattice row across once and keeps it for all the pixel rows near it,
+		 * so each pixel is left with just the blend down between rows (see
+		 * ScanlineRenderer).  The image comes out the same either way.
+		 * 
+		 * fastMath - If true, cosine interpolation reads its curve from a lookup table
+		 * instead of calling Math.cos (see FastCosine).  The image can be off from the
+		 * exact one by a tiny amount, usually not even one gray level.
+		 * 
+		 * hashedNoise - If true, the random starting noise is made on the spot from a
+		 * hash of the seed and the lattice point (see HashNoise) instead of being stored
+		 * in seeded tables.  Nothing has to be allocated or filled in before the render
+		 * starts.  The terrain looks the same in style but comes out different from the
+		 * table version for the same seed.
+		 * 
+		 * seeded, seed - If seeded is true, every render and generate starts over from
+		 * seed, so the same settings always make the same terrain (and it can be looked
+		 * up in a TerrainCache).  Otherwise each one carries on from the seed the
+		 * PerlinFractal was made with and makes a new terrain.
+		 * 
+		 * keepOctaves - If true, render() works out every octave, even the ones
+		 * freqReduc cuts out, and keeps the total at every place a freqReduc setting
+		 * could stop (up to six whole heightfields), so remap() can change freqReduc
+		 * too.  Otherwise only the octaves freqReduc wants are worked out and only the
+		 * finished noise is kept, so remap() can change maxBright and postSmooth but
+		 * not freqReduc.  The UI turns this on, batch jobs don't need it.
+		 * 
 		 * 
 		 */
     }
 
     public PerlinFractal(int size) {
-        this.size = size;
-        long time = (new Date()).getTime();
-        rand = new Random(time);
+        this(size, (new Date()).getTime());
+    }
 
-        // this "seeds" the fractal
-        noise = new double[size][size];  // Starting noise image for main interpolation types
+    public PerlinFractal(int size, long seed) {
+        this.size = size;
+        rand = new Random(seed);
 
-        xNoise = new double[size][size]; // These two noise images are required for Mr. Perlin's
-        yNoise = new double[size][size]; // own implementation.  Two are required because they
-        // represent vectors.
+        // The noise tables are only made when a render needs them, since
+        // hashed noise doesn't use them at all
     }
 
     public WritableImage render(PerlinSettings settings) {
-        // This method starts everything going.
+        return render(settings, new Progress());
+    }
+
+    public WritableImage render(PerlinSettings settings, Progress progress) {
+        // This method starts everything going.  progress hears about every row that
+        // gets seeded, worked out and colored, and can be used to cancel the render.
+
+        progress.begin(noiseRows(settings) + size);
+
+        // The layers are stored as an intermediate copy of the perlin noise values
+        // so that smoothed values can be made out of the final perlin noise array.
+        // With keepOctaves the noise is worked out for every octave, not just the
+        // ones this freqReduc wants, so that freqReduc can be changed by remap()
+        // later on.
+
+        PerlinSettings wanted = copyOf(settings);
+
+        if (settings.keepOctaves)
+            wanted.freqReduc = 0;
+
+        Heightfield[] made = generateLayers(wanted, settings.keepOctaves, progress);
+
+        // Only keep the layers once they are finished, so a cancelled render leaves
+        // the last one that did finish ready for remap()
+
+        layers = made;
+        layerSettings = copyOf(settings);
+
+        Heightfield arr = layers[OctavePlan.count(settings.blends, settings.freqReduc) - 1];
+
+        return GrayImage.of(size, size, toGray(arr, settings, progress));
+    }
+
+    private int noiseRows(PerlinSettings settings) {
+        // The number of rows of work (Progress steps) it takes to make the raw noise:
+        // one for every row seeded, unless the noise is hashed, plus one for every
+        // row worked out
+        return settings.hashedNoise ? size : 2 * size;
+    }
+
+    public boolean canRemap(PerlinSettings settings) {
+        // True if an image with these settings can be made out of the noise from the
+        // last render, because they only differ in maxBright or postSmooth, or in
+        // freqReduc if the render kept the octaves that needs
+
+        PerlinSettings last = layerSettings;
+
+        if (layers == null)
+            return false;
+
+        int k = OctavePlan.count(settings.blends, settings.freqReduc) - 1;
+
+        return k < layers.length && layers[k] != null && last.blends == settings.blends
+                && last.interp == settings.interp
+                && last.preSmooth == settings.preSmooth && last.fastMath == settings.fastMath
+                && last.hashedNoise == settings.hashedNoise
+                && (!settings.seeded || (last.seeded && last.seed == settings.seed));
+    }
+
+    public WritableImage remap(PerlinSettings settings) {
+        // Turn the noise from the last render into an image using these settings.
+        // This only redoes the cheap part of render(), so the same terrain comes back
+        // with a new brightness, freqReduc or postSmooth almost straight away.
+
+        if (!canRemap(settings))
+            throw new IllegalStateException("The noise has to be rendered again for these settings");
+
+        Heightfield arr = layers[OctavePlan.count(settings.blends, settings.freqReduc) - 1];
+
+        return GrayImage.of(size, size, toGray(arr, settings));
+    }
+
+    public Heightfield heights(PerlinSettings settings) {
+        // The heights behind the image remap(settings) makes, with full precision,
+        // for saving as a heightfield
+
+        if (!canRemap(settings))
+            throw new IllegalStateException("The noise has to be rendered again for these settings");
+
+        return finish(layers[OctavePlan.count(settings.blends, settings.freqReduc) - 1], settings);
+    }
 
-        seedNoise();  // Fill the noise arrays with random junk
+    public Heightfield finish(Heightfield arr, PerlinSettings settings) {
+        // Raw noise from generate() with the post smoothing done (if it is on), which
+        // is what toGray() colors in.  If there's no smoothing arr itself comes back.
 
-        WritableImage image = new WritableImage(size, size);
-        PixelWriter writer = image.getPixelWriter();
+        if (!settings.postSmooth || settings.interp == STANDARD)
+            return arr;
+
+        return Pipeline.from(arr).smooth().toHeightfield(settings.parallel);
+    }
+
+    public int[] toGray(Heightfield arr, PerlinSettings settings) {
+        // Turn raw noise from generate() into gray levels from 0 to 255, one per
+        // pixel, row after row.  This is the whole coloring step of render() without
+        // any JavaFX, so it can be used where there is no screen.
+
+        return toGray(arr, settings, new Progress());
+    }
+
+    private int[] toGray(Heightfield arr, PerlinSettings settings, Progress progress) {
 
 		/* take maxBright from the settings and turn it into a double (with a ratio)
 		 that can be used as a multiplier to change the final pixel color value
@@ -111,62 +254,241 @@ public class PerlinFractal {
 
         double maxBright = (double) 100.0 / settings.maxBright;
 
-        // Use array "arr" and store an intermediate copy of the perlin noise values
-        // so that smoothed values can be made out of the final perlin noise array
+        // The smoothing (if it is on), brightness and gray levels are all done in one
+        // pass over the noise, a band of rows at a time (see Pipeline)
 
-        double[][] arr = new double[size][size];
+        Pipeline pipeline = Pipeline.from(arr);
 
-        if (settings.postSmooth) {
-            for (int i = 0; i < size; i++) {
-                for (int j = 0; j < size; j++) {
-                    arr[j][i] = perlinNoise(j, i, settings);
-                }
-            }
+        if (settings.interp == STANDARD) {
+            // Perlin's standard method results in doubles between -1 and 1, which
+            // are turned into whole colors first and then modified with maxBright
+            pipeline.scale(127).offset(127).truncate().scale(maxBright);
+        } else {
+            if (settings.postSmooth)
+                pipeline.smooth();
+
+            pipeline.scale(255.0).scale(maxBright);
         }
 
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                int aColor = 0;
-                if (settings.interp == STANDARD) {
-                    // Perlin's standard method results in doubles between -1 and 1
-                    aColor = (int) (perlinNoise(j, i, settings) * 127 + 127);
-
-                    // now take the color value and modify it with maxBright
-                    aColor = (int) ((double) aColor * maxBright);
-                } else {
-                    if (settings.postSmooth)
-                        aColor = (int) (255.0 * smoothNoise(j, i, arr) * (double) maxBright);
-                    else
-                        aColor = (int) (255.0 * perlinNoise(j, i, settings) * (double) maxBright);
-                }
+        return pipeline.toGray(settings.parallel, progress);
+    }
 
-                if (aColor > 255)
-                    aColor = 255;
+    public Heightfield generate(PerlinSettings settings) {
+        return generate(settings, new Progress());
+    }
 
-                if (aColor < 0)
-                    aColor = 0;
+    public Heightfield generate(PerlinSettings settings, Progress progress) {
+        // Work out the raw perlin noise value of every pixel, before any brightness
+        // change or post smoothing.  Nothing in here needs JavaFX.
 
-                writer.setColor(j, i, Color.grayRgb(aColor));
+        progress.begin(noiseRows(settings));
 
-            }
+        Heightfield[] sums = generateLayers(settings, false, progress);
+        return sums[sums.length - 1];
+    }
+
+    private Heightfield[] generateLayers(PerlinSettings settings, boolean everyStop, Progress progress) {
+        // Same as generate, but gives back all of the running totals, with the
+        // finished noise last.  If everyStop is true it also keeps the totals that
+        // any freqReduc setting would stop at (see layers), the rest are null.
+
+        if (settings.seeded)
+            rand = new Random(settings.seed);
+
+        NoiseSource lattice;
+        boolean smooth = settings.preSmooth && settings.interp != STANDARD;
+
+        if (settings.hashedNoise) {
+            // Hashed noise wraps at the image size, just like the tables do
+            lattice = new HashNoise(rand.nextLong(), size);
+
+            if (smooth)
+                lattice = new SmoothedNoise(lattice);
+        } else {
+            seedNoise(settings.parallel, progress);  // Fill the noise arrays with random junk
+
+            // With preSmooth on, the whole starting noise image is smoothed once up front
+            // and the interpolation methods read from that instead of the raw noise
+
+            lattice = new TableNoise(smooth ? Smoothing.smooth(noise, settings.parallel) : noise, gradients);
+        }
+
+        OctavePlan plan = new OctavePlan(settings, makeSampler(settings, lattice));
+
+        Heightfield[] sums = new Heightfield[plan.blends.length];
+        sums[sums.length - 1] = new Heightfield(size);
+
+        for (int freqReduc = 0; everyStop && freqReduc <= 5; freqReduc++) {
+            int k = OctavePlan.count(settings.blends, freqReduc) - 1;
+
+            if (k < sums.length && sums[k] == null)
+                sums[k] = new Heightfield(size);
         }
 
-        return image;
+        fill(sums, 0, 0, settings, plan, lattice, progress);
+
+        return sums;
+    }
+
+    public static Heightfield generateRegion(long seed, PerlinSettings settings, int left, int top,
+                                             int width, int height) {
+        // Work out the raw perlin noise for any rectangle of a terrain that goes on
+        // forever in every direction.  The noise is always hashed (see HashNoise) and
+        // never wraps around, so two regions that sit side by side line up with no
+        // seam, and the same seed and settings always give the same terrain.
+
+        Heightfield arr = new Heightfield(width, height);
+
+        NoiseSource lattice = new HashNoise(seed, 0);
+
+        if (settings.preSmooth && settings.interp != STANDARD)
+            lattice = new SmoothedNoise(lattice);
+
+        fillRegion(settings, lattice, left, top, arr);
+
+        return arr;
     }
 
-    private double linearInterpolate(double a, double b, double x) {
+    private static void fillRegion(PerlinSettings settings, NoiseSource lattice, int left, int top,
+                                   Heightfield arr) {
+        // The noise from lattice for the rectangle the size of arr at left, top, put
+        // into arr
+
+        OctavePlan plan = new OctavePlan(settings, makeSampler(settings, lattice));
+
+        Heightfield[] sums = new Heightfield[plan.blends.length];
+        sums[sums.length - 1] = arr;
+
+        fill(sums, left, top, settings, plan, lattice, new Progress());
+    }
+
+    public void generateMapped(PerlinSettings settings, MappedHeightfield out) {
+        // Fill out, which can be far bigger than the heap, with the same terrain that
+        // generate() makes for the same seed, with the post smoothing done if it is
+        // on.  out has to be size x size.  Only one band of rows is ever in memory.
+        // The smoothing works on the heights already stored as floats, so with
+        // postSmooth a height can come out one float step off from finish().
+        //
+        // Only hashed noise can be made this way: the noise tables are as big as the
+        // terrain itself, so hashedNoise has to be on.
+
+        if (out.getWidth() != size || out.getHeight() != size)
+            throw new IllegalArgumentException("The heightfield has to be " + size + " x " + size);
+
+        if (!settings.hashedNoise)
+            throw new IllegalArgumentException("Only hashed noise (hashedNoise) can be made out of core");
+
+        if (settings.seeded)
+            rand = new Random(settings.seed);
+
+        // The same wrapped hashed noise generate() makes
+
+        NoiseSource lattice = new HashNoise(rand.nextLong(), size);
+
+        if (settings.preSmooth && settings.interp != STANDARD)
+            lattice = new SmoothedNoise(lattice);
+
+        int bandRows = (int) Math.max(1, Math.min(size, MAPPED_BAND_POINTS / size));
+
+        // The same band is filled again and again, only the last one can be shorter
+
+        Heightfield band = new Heightfield(size, bandRows);
+
+        for (int top = 0; top < size; top += bandRows) {
+            int rows = Math.min(bandRows, size - top);
+            int first = top;
+
+            if (rows < bandRows)
+                band = new Heightfield(size, rows);
+
+            fillRegion(settings, lattice, 0, top, band);
+
+            double[] data = band.getData();
+            RowBands.run(rows, settings.parallel, i -> out.setRow(first + i, data, i * size));
+        }
+
+        if (settings.postSmooth && settings.interp != STANDARD)
+            Smoothing.smooth(out);
+    }
+
+    private static void fill(Heightfield[] sums, int left, int top, PerlinSettings settings, OctavePlan plan,
+                             NoiseSource lattice, Progress progress) {
+        // Fill the last heightfield in sums with the noise for the pixels starting at
+        // left, top.  Any other one that isn't null gets the total after its octave.
+
+        Heightfield arr = sums[sums.length - 1];
+        int width = arr.getWidth();
+
+        double[][] rows = new double[sums.length][];
+        for (int k = 0; k < sums.length; k++)
+            rows[k] = (sums[k] == null) ? null : sums[k].getData();
+
+        // Work out the interpolation tables once for the whole image
+
+        ScanlineRenderer scanlines = settings.vectorized
+                ? new ScanlineRenderer(width, left, settings, plan, lattice) : null;
+
+        RowBands.runBands(arr.getHeight(), settings.parallel, progress, (start, end) -> {
+            if (scanlines != null) {
+                scanlines.renderRows(top + start, top + end, rows, start * width);
+                return;
+            }
+
+            for (int i = start; i < end; i++) {
+                for (int j = 0; j < width; j++) {
+                    double value = 0;
+
+                    for (int k = 0; k < rows.length; k++) {
+                        value += plan.octave(k, left + j, top + i);
+
+                        if (rows[k] != null)
+                            rows[k][i * width + j] = value;
+                    }
+                }
+            }
+        });
+    }
+
+    private static PerlinSettings copyOf(PerlinSettings settings) {
+        PerlinSettings copy = new PerlinSettings();
+
+        copy.blends = settings.blends;
+        copy.interp = settings.interp;
+        copy.maxBright = settings.maxBright;
+        copy.freqReduc = settings.freqReduc;
+        copy.preSmooth = settings.preSmooth;
+        copy.postSmooth = settings.postSmooth;
+        copy.parallel = settings.parallel;
+        copy.vectorized = settings.vectorized;
+        copy.separable = settings.separable;
+        copy.fastMath = settings.fastMath;
+        copy.keepOctaves = settings.keepOctaves;
+        copy.hashedNoise = settings.hashedNoise;
+        copy.seeded = settings.seeded;
+        copy.seed = settings.seed;
+
+        return copy;
+    }
+
+    private static double linearInterpolate(double a, double b, double x) {
         //	 Perform linear interpolation on the points (this code came from an html site)
         return a * (1 - x) + b * x;
     }
 
-    private double cosineInterpolate(double a, double b, double x) {
+    private static double cosineInterpolate(double a, double b, double x) {
         //	 Perform cosine interpolation on the points (this code came from an html site)
         double ft = x * Math.PI;
         double f = (1 - Math.cos(ft)) * 0.5;
         return a * (1 - f) + b * f;
     }
 
-    private double cubicInterpolate(double v0, double v1, double v2, double v3, double x) {
+    private static double fastCosineInterpolate(double a, double b, double x) {
+        // Same as cosineInterpolate, but the curve comes out of a lookup table
+        double f = FastCosine.weight(x);
+        return a * (1 - f) + b * f;
+    }
+
+    private static double cubicInterpolate(double v0, double v1, double v2, double v3, double x) {
         // Perform cubic interpolation on the points (this code came from an html site)
         double p = (v3 - v2) - (v0 - v1);
         double q = (v0 - v1) - p;
@@ -176,158 +498,142 @@ public class PerlinFractal {
         return p * x * x * x + q * x * x + r * x + s;
     }
 
-    private void seedNoise() {
-        // Fill the three noise arrays with random junk using Java's built in Random class
+    void seedNoise(boolean parallel, Progress progress) {
+        // Fill the three noise arrays with random junk.  Each row of the arrays gets
+        // its own random number generator, seeded from one render seed plus the row
+        // number, so the rows can be filled in any order (or all at once on
+        // different threads) and still come out the same for a given seed.
 
-        for (int i = 0; i < size; i++)
-            for (int j = 0; j < size; j++)
-                noise[j][i] = rand.nextDouble();
+        if (noise == null) {
+            noise = new Heightfield(size);  // Starting noise image for main interpolation types
 
-        // Now seed the noise for the "original" Perlin method
+            gradients = new double[2 * size * size]; // The random vectors needed for Mr. Perlin's
+            // own implementation.
+        }
 
-        for (int i = 0; i < size; i++)
-            for (int j = 0; j < size; j++) {
-                xNoise[j][i] = rand.nextDouble();
+        long renderSeed = rand.nextLong();
 
-                if (rand.nextDouble() < 0.5)
-                    xNoise[j][i] = -xNoise[j][i];
+        RowBands.run(size, parallel, progress, i -> seedRow(renderSeed, i));
+    }
 
-                yNoise[j][i] = rand.nextDouble();
+    private void seedRow(long renderSeed, int i) {
+        SplittableRandom rowRand = new SplittableRandom(renderSeed ^ (i * ROW_SEED_MIX));
 
-                if (rand.nextDouble() < 0.5)
-                    yNoise[j][i] = -yNoise[j][i];
-            }
+        for (int j = 0; j < size; j++)
+            noise.set(j, i, rowRand.nextDouble());
 
-    }
+        // Now seed the noise for the "original" Perlin method
 
-    private DoubleVector randVector(int x, int y) {
-		/* This method is used by the code that implements Mr. Perlins original method
-		 * of random image making.  His method requires the generation of random
-		 * 2d vectors.  These vectors are generated and stored in arrays xNoise, and yNoise
-		 * at another point in the program.  So, the x coordinate for a vector at point
-		 * x, y is at (xNoise[x][y]) and the y coordinate for the vector is at  (yNoise[x][y])
-		 * 
-		 * Basically, for every array point there needs to be two values associated with that 
-		 * point.
-		 * 
-		 * Anyway, all this method looks at the vector values in the two arrays and normalizes them
-		 * 
-		 * so they have a length of one.  It then returns the normalized vector value.
-		 * 
-		 * This step could have easily been done at a point earlier in the program.
-		 * 
-		 * This is an unfortunate use of code in this program.
-		 */
+        for (int j = 0; j < size; j++) {
+            double xx = rowRand.nextDouble();
 
-        double xx = xNoise[x][y];
-        double yy = yNoise[x][y];
+            if (rowRand.nextDouble() < 0.5)
+                xx = -xx;
 
-        double hyp = Math.sqrt(xx * xx + yy * yy);
+            double yy = rowRand.nextDouble();
 
-        xx = xx / hyp;
+            if (rowRand.nextDouble() < 0.5)
+                yy = -yy;
 
-        yy = yy / hyp;
+            // Normalize the vector so it has a length of one.  Doing this here means
+            // the per-pixel code can use the vectors straight out of the table.
 
-        return new DoubleVector(xx, yy);
+            double hyp = Math.sqrt(xx * xx + yy * yy);
 
+            int g = 2 * (i * size + j);
+            gradients[g] = xx / hyp;
+            gradients[g + 1] = yy / hyp;
+        }
     }
 
-    private double perlinNoise(int x, int y, PerlinSettings settings) {
-        // This function calculates the color of the final image for
-        // coordinate x, y of the image
+    static NoiseSampler makeSampler(PerlinSettings settings, NoiseSource lattice) {
+        // Pick the interpolation method once, so that the per-pixel code doesn't
+        // have to keep checking settings.interp and settings.preSmooth
 
-        double divide = 2;
+        switch (settings.interp) {
+            case LINEAR:
+                return (x, y) -> linearSample(x, y, lattice);
 
-        int blends = (int) (Math.pow(2.0, (double) settings.blends));
+            case COSINE:
+                if (settings.fastMath)
+                    return (x, y) -> fastCosineSample(x, y, lattice);
+                return (x, y) -> cosineSample(x, y, lattice);
 
-        double stopper;
+            case CUBIC:
+                return (x, y) -> cubicCalculations(x, y, lattice);
 
-        if (settings.freqReduc == 0)
-            stopper = 0;
-        else if (settings.freqReduc == 1)
-            stopper = 1.0 / 32;
-        else if (settings.freqReduc == 2)
-            stopper = 1.0 / 16;
-        else if (settings.freqReduc == 3)
-            stopper = 1.0 / 8;
-        else if (settings.freqReduc == 4)
-            stopper = 1.0 / 4;
-        else
-            stopper = 1.0 / 2;
+            case STANDARD:
+                return (x, y) -> originalNoise(x, y, lattice);
+        }
 
-        int stopLoop = (int) (stopper * (double) blends);
+        return (x, y) -> 0;
+    }
 
-        double value = 0; // return value (color)
+    private static double linearSample(double x, double y, NoiseSource lattice) {
+        // Take the double x,y, and convert to integer lattice coordinates.
 
-        while (blends > stopLoop) {
-            if (settings.interp == STANDARD)
-                value += (originalNoise((double) x / blends, (double) y
-                        / blends) / divide);
-            else
-                value += (interpolate((double) x / blends, (double) y / blends,
-                        settings) / divide);
+        // The noise source takes care of any coords that fall off the end of
+        // the noise image
 
-            blends /= 2;
-            divide *= 2;
-        }
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
 
-        return value;
-    }
+        int x1 = (int) floorX;
+        int y1 = (int) floorY;
 
-    private double interpolate(double x, double y, PerlinSettings settings) {
+        int x2 = x1 + 1;
+        int y2 = y1 + 1;
 
-        // The cubic interpolation code is so large that it had to be put in its own
-        // method
-        if (settings.interp == CUBIC)
-            return cubicCalculations(x, y, settings);
+        double fractx = x - floorX;
+        double fracty = y - floorY;
 
-        // Take the double x,y, and convert to integer array coordinates.
+        double i1 = linearInterpolate(lattice.value(x1, y1), lattice.value(x2, y1), fractx);
+        double i2 = linearInterpolate(lattice.value(x1, y2), lattice.value(x2, y2), fractx);
+        return linearInterpolate(i1, i2, fracty);
+    }
 
-        // Make sure that the array coords do not fall off the end of the array
-        // with the modulus % operator
+    private static double cosineSample(double x, double y, NoiseSource lattice) {
+        // Same as linearSample, but with the cosine curve between the points
 
-        int x1 = ((int) x + size) % size;
-        int y1 = ((int) y + size) % size;
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
 
-        int x2 = (x1 + size + 1) % size;
-        int y2 = (y1 + size + 1) % size;
+        int x1 = (int) floorX;
+        int y1 = (int) floorY;
 
-        double fractx = x - Math.floor(x);
-        double fracty = y - Math.floor(y);
+        int x2 = x1 + 1;
+        int y2 = y1 + 1;
 
-        double n1, n2, n3, n4;
+        double fractx = x - floorX;
+        double fracty = y - floorY;
 
-        if (settings.preSmooth) {
-            n1 = smoothNoise(x1, y1, noise);
-            n2 = smoothNoise(x2, y1, noise);
-            n3 = smoothNoise(x1, y2, noise);
-            n4 = smoothNoise(x2, y2, noise);
-        } else {
-            n1 = noise[x1][y1];
-            n2 = noise[x2][y1];
-            n3 = noise[x1][y2];
-            n4 = noise[x2][y2];
-        }
+        double i1 = cosineInterpolate(lattice.value(x1, y1), lattice.value(x2, y1), fractx);
+        double i2 = cosineInterpolate(lattice.value(x1, y2), lattice.value(x2, y2), fractx);
+        return cosineInterpolate(i1, i2, fracty);
+    }
 
-        double i1, i2;
+    private static double fastCosineSample(double x, double y, NoiseSource lattice) {
+        // Same as cosineSample, but with the cosine curve out of a lookup table
 
-        switch (settings.interp) {
-            case LINEAR:
-                i1 = linearInterpolate(n1, n2, fractx);
-                i2 = linearInterpolate(n3, n4, fractx);
-                return linearInterpolate(i1, i2, fracty);
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
 
-            case COSINE:
-                i1 = cosineInterpolate(n1, n2, fractx);
-                i2 = cosineInterpolate(n3, n4, fractx);
-                return cosineInterpolate(i1, i2, fracty);
-        }
+        int x1 = (int) floorX;
+        int y1 = (int) floorY;
 
-        return 0;
+        int x2 = x1 + 1;
+        int y2 = y1 + 1;
+
+        double fractx = x - floorX;
+        double fracty = y - floorY;
+
+        double i1 = fastCosineInterpolate(lattice.value(x1, y1), lattice.value(x2, y1), fractx);
+        double i2 = fastCosineInterpolate(lattice.value(x1, y2), lattice.value(x2, y2), fractx);
+        return fastCosineInterpolate(i1, i2, fracty);
     }
 
-    private double cubicCalculations(double x, double y, PerlinSettings settings) {
-		/*  Perform cubic interpolation on the point x, y from the noise[][] array
+    private static double cubicCalculations(double x, double y, NoiseSource lattice) {
+		/*  Perform cubic interpolation on the point x, y from the lattice heightfield
 		 * 
 		 * It uses the cubic interpolation function from the html website that comes
 		 * 
@@ -341,82 +647,57 @@ public class PerlinFractal {
 		 * 
 		 */
 
-        double fractx = x - Math.floor(x);
-        double fracty = y - Math.floor(y);
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
+
+        double fractx = x - floorX;
+        double fracty = y - floorY;
 
-        int x1 = ((int) x + size - 1) % size;
-        int x2 = ((int) x + size) % size;
-        int x3 = ((int) x + size + 1) % size;
-        int x4 = ((int) x + size + 2) % size;
+        int x1 = (int) floorX - 1;
+        int x2 = x1 + 1;
+        int x3 = x1 + 2;
+        int x4 = x1 + 3;
 
-        int y1 = ((int) y + size - 1) % size;
-        int y2 = ((int) y + size) % size;
-        int y3 = ((int) y + size + 1) % size;
-        int y4 = ((int) y + size + 2) % size;
+        int y1 = (int) floorY - 1;
+        int y2 = y1 + 1;
+        int y3 = y1 + 2;
+        int y4 = y1 + 3;
 
         // Cover the y-1 line x grouping
 
         double n1, n2, n3, n4;
 
-        if (settings.preSmooth) {
-            n1 = smoothNoise(x1, y1, noise);
-            n2 = smoothNoise(x2, y1, noise);
-            n3 = smoothNoise(x3, y1, noise);
-            n4 = smoothNoise(x4, y3, noise);
-        } else {
-            n1 = noise[x1][y1];
-            n2 = noise[x2][y1];
-            n3 = noise[x3][y1];
-            n4 = noise[x4][y1];
-        }
+        n1 = lattice.value(x1, y1);
+        n2 = lattice.value(x2, y1);
+        n3 = lattice.value(x3, y1);
+        n4 = lattice.value(x4, y1);
 
         // Cover the y line x grouping
 
         double n5, n6, n7, n8;
 
-        if (settings.preSmooth) {
-            n5 = smoothNoise(x1, y2, noise);
-            n6 = smoothNoise(x2, y2, noise);
-            n7 = smoothNoise(x3, y2, noise);
-            n8 = smoothNoise(x4, y2, noise);
-        } else {
-            n5 = noise[x1][y2];
-            n6 = noise[x2][y2];
-            n7 = noise[x3][y2];
-            n8 = noise[x4][y2];
-        }
+        n5 = lattice.value(x1, y2);
+        n6 = lattice.value(x2, y2);
+        n7 = lattice.value(x3, y2);
+        n8 = lattice.value(x4, y2);
 
         // Cover the y+1 line x grouping
 
         double n9, n10, n11, n12;
 
-        if (settings.preSmooth) {
-            n9 = smoothNoise(x1, y3, noise);
-            n10 = smoothNoise(x2, y3, noise);
-            n11 = smoothNoise(x3, y3, noise);
-            n12 = smoothNoise(x4, y3, noise);
-        } else {
-            n9 = noise[x1][y3];
-            n10 = noise[x2][y3];
-            n11 = noise[x3][y3];
-            n12 = noise[x4][y3];
-        }
+        n9 = lattice.value(x1, y3);
+        n10 = lattice.value(x2, y3);
+        n11 = lattice.value(x3, y3);
+        n12 = lattice.value(x4, y3);
 
         // Cover the y+2 line x grouping
 
         double n13, n14, n15, n16;
 
-        if (settings.preSmooth) {
-            n13 = smoothNoise(x1, y4, noise);
-            n14 = smoothNoise(x2, y4, noise);
-            n15 = smoothNoise(x3, y4, noise);
-            n16 = smoothNoise(x4, y4, noise);
-        } else {
-            n13 = noise[x1][y4];
-            n14 = noise[x2][y4];
-            n15 = noise[x3][y4];
-            n16 = noise[x4][y4];
-        }
+        n13 = lattice.value(x1, y4);
+        n14 = lattice.value(x2, y4);
+        n15 = lattice.value(x3, y4);
+        n16 = lattice.value(x4, y4);
 
         double i1 = cubicInterpolate(n1, n2, n3, n4, fractx);
         double i2 = cubicInterpolate(n5, n6, n7, n8, fractx);
@@ -426,80 +707,40 @@ public class PerlinFractal {
         return cubicInterpolate(i1, i2, i3, i4, fracty);
     }
 
-    private double smoothNoise(int x, int y, double[][] noise) {
-        // Smooth array point x, y, in the array noise[][]
-
-        // It is important to note that the argument noise has the same name
-        // as a class variable, noise, of the exact same type.  This is on accident.
-
-        // The noise argument here overrides the class variable noise
-
-        int x1 = (x + size) % size;
-        int y1 = (y + size) % size;
-
-        int x2 = (x1 + size - 1) % size;
-        int y2 = (y1 + size - 1) % size;
-
-        int x3 = (x1 + size + 1) % size;
-        int y3 = (y1 + size + 1) % size;
-
-        int smooth1 = 4;
-        int smooth2 = 8;
-        int smooth3 = 16;
-
-        double corners = (noise[x2][y2] + noise[x3][y2] + noise[x2][y3] + noise[x3][y3])
-                / smooth3;
-        double sides = (noise[x2][y1] + noise[x3][y1] + noise[x1][y2] + noise[x1][y3])
-                / smooth2;
-        double center = noise[x1][y1] / smooth1;
-
-        return corners + sides + center;
-    }
-
-    private double originalNoise(double x, double y) {
+    private static double originalNoise(double x, double y, NoiseSource lattice) {
         // This code calculates PerlinNoise using the original implementation
         // by Mr. Perlin - refer to the website html that comes with this program
 
         // ---------------------------------------
 
-        // Make the four pseudo-random gradients and coordinate point
-        // Subtraction
-        // Vectors
+        // Find the four pseudo-random gradients around the point and the
+        // coordinate point subtraction vectors
 
-        int xInt = (int) x;
-        int yInt = (int) y;
+        double floorX = Math.floor(x);
+        double floorY = Math.floor(y);
 
-        // Make left top gradient
-        DoubleVector bottomLeft = randVector(xInt, yInt);
-        double x0 = x - xInt;
-        double y0 = y - yInt;
-
-        // Make top right gradient (which effectively rounds up the xdouble)
-        xInt = (xInt + size + 1) % size;
-        DoubleVector bottomRight = randVector(xInt, yInt);
-        // Make subtractive vector
-        double x1 = x - xInt;
+        int xInt = (int) floorX;
+        int yInt = (int) floorY;
 
-        // Make bottom right gradient (which rounds up ydouble
-        yInt = (yInt + size + 1) % size;
-        DoubleVector topRight = randVector(xInt, yInt);
-        // Make subtractive vector
-        double y1 = y - yInt;
+        // The next lattice point over and up (which effectively rounds up the doubles)
+        int xNext = xInt + 1;
+        int yNext = yInt + 1;
 
-        // Make bottom left gradient
-        xInt = (xInt + size - 1) % size;
-        DoubleVector topLeft = randVector(xInt, yInt);
-        // Make subtractive vector
+        // Make subtractive vectors
+        double x0 = x - xInt;
+        double y0 = y - yInt;
+        double x1 = x - xNext;
+        double y1 = y - yNext;
 
         // ------------------------------------------
         // Compute dot products
 
         double s, t, u, v;
 
-        s = bottomLeft.x * x0 + bottomLeft.y * y0;
-        t = bottomRight.x * x1 + bottomRight.y * y0;
-        u = topLeft.x * x0 + topLeft.y * y1;
-        v = topRight.x * x1 + topRight.y * y1;
+        s = lattice.dot(xInt, yInt, x0, y0);
+        t = lattice.dot(xNext, yInt, x1, y0);
+        u = lattice.dot(xInt, yNext, x0, y1);
+        v = lattice.dot(xNext, yNext, x1, y1);
 
         // ---------------------------------------
 
@@ -516,9 +757,11 @@ public class PerlinFractal {
 
     public void setSize(int size) {
         this.size = size;
-        noise = new double[size][size];
-        xNoise = new double[size][size];
-        yNoise = new double[size][size];
+
+        // Made again at the new size by the next render that needs them
+        noise = null;
+        gradients = null;
+        layers = null;
     }
 
 }
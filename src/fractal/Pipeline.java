@@ -0,0 +1,302 @@
+/*
+ * This class chains up the steps that turn raw heights into finished heights or gray
+ * levels, and runs the whole chain in one pass over the image.
+ *
+ * A pipeline starts from a source of rows (a Heightfield, a MappedHeightfield, or
+ * anything else that can hand out one row at a time) and then has any number of
+ * stages added to it:
+ *
+ * 	point stages   - work on one height at a time: scale(), divide(), offset(),
+ * 		truncate() and clamp(), or any DoubleUnaryOperator given to map().  Each one
+ * 		is a plain loop along the row the band is working on, so the row is still in
+ * 		the cache for the next one.
+ *
+ * 	stencil stages - work out each height from the 3x3 block around it, like smooth(),
+ * 		wrapping around at the edges of the image.
+ *
+ * At the end toGray() turns the heights into gray levels from 0 to 255 (dropping the
+ * fraction and clamping, the way the engines always have), or toHeightfield() keeps
+ * them as they are.
+ *
+ * Nothing is worked out until then, and even then there is no full size array in
+ * between the stages.  The image is done in bands of rows (see RowBands), and each
+ * band goes through every stage while it is still in the cache: the band is read from
+ * the source with a few extra rows above and below it, one for every stencil, and
+ * each stencil then uses up one of those extra rows at each end.
+ */
+
+package fractal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleUnaryOperator;
+
+public class Pipeline {
+    public interface RowSource {
+        // Put the width heights of row y into row
+        void row(int y, double[] row);
+    }
+
+    public interface Stencil {
+        // Work out every height of out from row and the rows just above and below
+        // it, wrapping around at the left and right ends
+        void apply(double[] above, double[] row, double[] below, double[] out);
+    }
+
+    // The weighted average the engines have always used for post smoothing: the
+    // point itself counts for 1/4, its four sides for 1/8 each and its four corners
+    // for 1/16 each.  It is added up in the same order as their smoothNoise() was,
+    // so it gives exactly the same heights.
+    public static final Stencil SMOOTH = (above, row, below, out) -> {
+        int width = row.length;
+
+        for (int x = 0; x < width; x++) {
+            int left = (x == 0) ? width - 1 : x - 1;
+            int right = (x == width - 1) ? 0 : x + 1;
+
+            double corners = (above[left] + above[right] + below[left] + below[right]) / 16;
+            double sides = (row[left] + row[right] + above[x] + below[x]) / 8;
+            double center = row[x] / 4;
+
+            out[x] = corners + sides + center;
+        }
+    };
+
+    // The kinds of point stage.  The last two are a scale followed by an offset or
+    // another scale, which are so common they get a loop of their own.
+    private static final int MAP = 0, SCALE = 1, DIVIDE = 2, OFFSET = 3, TRUNCATE = 4, CLAMP = 5,
+            SCALE_OFFSET = 6, SCALE_SCALE = 7;
+
+    private static class PointStage {
+        final int kind;
+        final double a, b;
+        final DoubleUnaryOperator map;
+
+        PointStage(int kind, double a, double b, DoubleUnaryOperator map) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.map = map;
+        }
+    }
+
+    private final int width, height;
+    private final RowSource source;
+
+    // stencils[j] is followed by the point stages in points[j + 1], points[0] go
+    // straight after the source
+    private final List<Stencil> stencils = new ArrayList<>();
+    private final List<List<PointStage>> points = new ArrayList<>();
+
+    private Pipeline(int width, int height, RowSource source) {
+        this.width = width;
+        this.height = height;
+        this.source = source;
+
+        points.add(new ArrayList<>());
+    }
+
+    public static Pipeline from(int width, int height, RowSource source) {
+        return new Pipeline(width, height, source);
+    }
+
+    public static Pipeline from(Heightfield field) {
+        int width = field.getWidth();
+        double[] data = field.getData();
+
+        return new Pipeline(width, field.getHeight(), (y, row) -> System.arraycopy(data, y * width, row, 0, width));
+    }
+
+    public static Pipeline from(MappedHeightfield field) {
+        return new Pipeline(field.getWidth(), field.getHeight(), (y, row) -> field.getRow(y, row, 0));
+    }
+
+    public Pipeline map(DoubleUnaryOperator stage) {
+        return point(MAP, 0, 0, stage);
+    }
+
+    public Pipeline scale(double factor) {
+        return point(SCALE, factor, 0, null);
+    }
+
+    public Pipeline divide(double divisor) {
+        return point(DIVIDE, divisor, 0, null);
+    }
+
+    public Pipeline offset(double amount) {
+        return point(OFFSET, amount, 0, null);
+    }
+
+    public Pipeline truncate() {
+        // Drop the fraction, the same as casting to an int
+        return point(TRUNCATE, 0, 0, null);
+    }
+
+    public Pipeline clamp(double low, double high) {
+        return point(CLAMP, low, high, null);
+    }
+
+    private Pipeline point(int kind, double a, double b, DoubleUnaryOperator map) {
+        List<PointStage> stages = points.get(points.size() - 1);
+        int last = stages.size() - 1;
+
+        // Join a scale and whatever scale or offset comes straight after it into one
+        // stage.  They are still worked out one after the other, so nothing changes
+        // in the result, there's just one less trip along the row.
+
+        if (last >= 0 && stages.get(last).kind == SCALE && (kind == OFFSET || kind == SCALE)) {
+            stages.set(last, new PointStage((kind == OFFSET) ? SCALE_OFFSET : SCALE_SCALE,
+                    stages.get(last).a, a, null));
+            return this;
+        }
+
+        stages.add(new PointStage(kind, a, b, map));
+        return this;
+    }
+
+    public Pipeline stencil(Stencil stage) {
+        stencils.add(stage);
+        points.add(new ArrayList<>());
+        return this;
+    }
+
+    public Pipeline smooth() {
+        return stencil(SMOOTH);
+    }
+
+    public int[] toGray(boolean parallel, Progress progress) {
+        // Run the pipeline and turn each height into a gray level by dropping the
+        // fraction and keeping it between 0 and 255.  Every finished row is a step
+        // of progress.
+
+        int[] grays = new int[width * height];
+
+        run(parallel, progress, (y, row) -> {
+            int start = y * width;
+
+            for (int x = 0; x < width; x++) {
+                int gray = (int) row[x];
+
+                if (gray > 255)
+                    gray = 255;
+                if (gray < 0)
+                    gray = 0;
+
+                grays[start + x] = gray;
+            }
+        });
+
+        return grays;
+    }
+
+    public Heightfield toHeightfield(boolean parallel) {
+        Heightfield result = new Heightfield(width, height);
+        double[] data = result.getData();
+
+        run(parallel, new Progress(), (y, row) -> System.arraycopy(row, 0, data, y * width, width));
+
+        return result;
+    }
+
+    private interface RowSink {
+        void accept(int y, double[] row);
+    }
+
+    private void run(boolean parallel, Progress progress, RowSink sink) {
+        int extra = stencils.size();
+
+        // Each band takes the rows to work in out of the pool (see ScratchPool),
+        // grown when a band needs more.  The last one is the spare a stencil writes
+        // into.
+        ScratchPool<double[][]> scratch = new ScratchPool<>(() -> new double[0][]);
+
+        RowBands.runBands(height, parallel, progress, (start, end) -> {
+            int count = end - start + 2 * extra;
+
+            double[][] rows = scratch.take();
+            if (rows.length < count + 1)
+                rows = new double[count + 1][width];
+
+            // Read the band from the source, with extra rows above and below it
+            // (wrapping around the top and bottom of the image)
+
+            for (int i = 0; i < count; i++) {
+                source.row(Math.floorMod(start - extra + i, height), rows[i]);
+                apply(points.get(0), rows[i]);
+            }
+
+            // Each stencil turns rows i, i + 1 and i + 2 into row i, so the band
+            // gets one row shorter at each end.  Row i isn't needed for anything
+            // after that, so it becomes the next spare.
+
+            for (int j = 0; j < extra; j++) {
+                Stencil stage = stencils.get(j);
+                List<PointStage> after = points.get(j + 1);
+
+                count -= 2;
+
+                for (int i = 0; i < count; i++) {
+                    double[] out = rows[rows.length - 1];
+                    stage.apply(rows[i], rows[i + 1], rows[i + 2], out);
+                    apply(after, out);
+
+                    rows[rows.length - 1] = rows[i];
+                    rows[i] = out;
+                }
+            }
+
+            for (int i = 0; i < count; i++)
+                sink.accept(start + i, rows[i]);
+
+            scratch.give(rows);
+        });
+    }
+
+    private static void apply(List<PointStage> stages, double[] row) {
+        for (PointStage stage : stages) {
+            double a = stage.a, b = stage.b;
+
+            switch (stage.kind) {
+                case MAP:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = stage.map.applyAsDouble(row[x]);
+                    break;
+
+                case SCALE:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = row[x] * a;
+                    break;
+
+                case DIVIDE:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = row[x] / a;
+                    break;
+
+                case OFFSET:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = row[x] + a;
+                    break;
+
+                case TRUNCATE:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = (int) row[x];
+                    break;
+
+                case SCALE_OFFSET:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = row[x] * a + b;
+                    break;
+
+                case SCALE_SCALE:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = row[x] * a * b;
+                    break;
+
+                case CLAMP:
+                    for (int x = 0; x < row.length; x++)
+                        row[x] = (row[x] < a) ? a : (row[x] > b) ? b : row[x];
+                    break;
+            }
+        }
+    }
+}
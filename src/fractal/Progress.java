@@ -0,0 +1,72 @@
+/*
+ * This class lets a render tell the outside world how far along it is, and lets the
+ * outside world tell the render to stop.
+ *
+ * The engines count their work in steps (usually one row of the image).  When a render
+ * starts it says how many steps there will be with begin(), and then after every step
+ * it calls step(), which passes the new count on to the listener, if there is one.
+ *
+ * Cancelling is cooperative.  cancel() just raises a flag, and the next time the render
+ * calls step() (or check()) it throws a CancellationException, which unwinds the render
+ * from wherever it is.  Rows are short, so that happens almost straight away.
+ *
+ * Every method can be called from any thread, including the row threads of a parallel
+ * render, so the listener has to be thread safe too.
+ */
+
+package fractal;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Progress {
+
+    public interface Listener {
+        void changed(long done, long total);
+    }
+
+    private final Listener listener;
+
+    private volatile boolean cancelled;
+
+    private final AtomicLong done = new AtomicLong();
+
+    private volatile long total;
+
+    public Progress() {
+        this(null);
+    }
+
+    public Progress(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void begin(long total) {
+        // Start counting again for a render that takes this many steps
+        this.total = total;
+        done.set(0);
+        check();
+    }
+
+    void step(long steps) {
+        check();
+
+        long now = done.addAndGet(steps);
+
+        if (listener != null)
+            listener.changed(now, total);
+    }
+
+    void check() {
+        if (cancelled)
+            throw new CancellationException("render cancelled");
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * This class works out a normal map and a shaded relief (hillshade) image from the
+ * full precision heights of either engine, instead of from a saved 8 bit image.
+ *
+ * Both come from the slope at each point, which is found with Horn's method: the
+ * 3x3 block of heights around the point, with the sides counting twice as much as
+ * the corners, gives the slope across and the slope down.  At the edges of the field
+ * the points past the edge are taken to be the same as the edge point.  The slopes
+ * give the normal (the direction straight out of the ground), and the hillshade is
+ * how much of the light from a sun at azimuth and elevation falls on the ground
+ * there, from 0 (in shadow) to 255 (facing straight at the sun).
+ *
+ * The normals come packed one of two ways:
+ *
+ * 	RGB8         - x, y and z each turned from -1..1 into 0..255 and packed into an
+ * 		int as 0xRRGGBB, the usual normal map colors.  y points to the top of the
+ * 		image.
+ *
+ * 	OCTAHEDRAL16 - the normal folded down onto an octahedron and then flattened into
+ * 		a square, which needs just two numbers.  Those are turned into 0..255 and
+ * 		packed as 0xUUVV, 16 bits per normal.
+ *
+ * Everything is done in one pass over the heights.  The field is cut up into bands of
+ * rows (see RowBands), and each band reads its own rows plus one above and below into
+ * a few scratch rows, then works out the normal and the shade for every point of the
+ * band while those rows are still in the cache.  The bands can run on every core and
+ * come out exactly the same as when they run one after another.
+ */
+
+package fractal;
+
+public class Relief {
+    public static final int RGB8 = 0, OCTAHEDRAL16 = 1;
+
+    public static class ReliefSettings {
+        // Settings for Relief.of()
+
+        public int normalFormat = RGB8;
+
+        public double relief = 0.1, azimuth = 315, elevation = 45;
+
+        public boolean parallel;
+
+		/* normalFormat - RGB8 or OCTAHEDRAL16, see above.
+		 *
+		 * relief - how tall the terrain is.  The distance from the lowest point to
+		 * the highest one is this part of the width of the field, so 0.1 on a
+		 * 513 x 513 field makes the highest point 51.3 points above the lowest.
+		 *
+		 * azimuth - the direction the sun shines from, in degrees clockwise from the
+		 * top of the image.  315 is from the top left, the usual for maps.
+		 *
+		 * elevation - how high the sun is above the horizon, in degrees.
+		 *
+		 * parallel - If true, the bands of rows are run on all of the cores.  The
+		 * result comes out exactly the same as the single threaded one.
+		 */
+    }
+
+    private final int width, height;
+
+    private final int[] normals, shade;
+
+    private Relief(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        normals = new int[width * height];
+        shade = new int[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getNormals() {
+        // The packed normals, row after row
+        return normals;
+    }
+
+    public int[] getShade() {
+        // The hillshade as gray levels from 0 to 255, row after row, the same as
+        // toGray() gives
+        return shade;
+    }
+
+    public static Relief of(Heightfield heights, ReliefSettings settings) {
+        return of(heights, settings, new Progress());
+    }
+
+    public static Relief of(Heightfield heights, ReliefSettings settings, Progress progress) {
+        int width = heights.getWidth();
+        double[] data = heights.getData();
+
+        return of(width, heights.getHeight(), (y, row) -> System.arraycopy(data, y * width, row, 0, width),
+                settings, progress);
+    }
+
+    public static Relief of(MappedHeightfield heights, ReliefSettings settings, Progress progress) {
+        return of(heights.getWidth(), heights.getHeight(), (y, row) -> heights.getRow(y, row, 0), settings,
+                progress);
+    }
+
+    public static Relief of(int width, int height, Pipeline.RowSource source, ReliefSettings settings,
+                            Progress progress) {
+        // The range of the heights is found first (a pass of its own), then every
+        // finished row is a step of progress
+
+        progress.begin(2L * height);
+
+        double[] range = range(width, height, source, settings.parallel, progress);
+
+        Relief result = new Relief(width, height);
+        result.sweep(source, settings, range[1] - range[0], progress);
+
+        return result;
+    }
+
+    private static double[] range(int width, int height, Pipeline.RowSource source, boolean parallel,
+                                  Progress progress) {
+        // Lowest and highest height.  Each band finds its own and they are put
+        // together afterwards, which gives the same answer in any order.
+
+        double[] lows = new double[height], highs = new double[height];
+
+        // Each band reads its rows into a row out of the pool (see ScratchPool)
+        ScratchPool<double[]> rows = new ScratchPool<>(() -> new double[width]);
+
+        RowBands.runBands(height, parallel, progress, (start, end) -> {
+            double[] row = rows.take();
+
+            for (int y = start; y < end; y++) {
+                source.row(y, row);
+
+                double low = Double.POSITIVE_INFINITY, high = Double.NEGATIVE_INFINITY;
+                for (double h : row) {
+                    low = Math.min(low, h);
+                    high = Math.max(high, h);
+                }
+
+                lows[y] = low;
+                highs[y] = high;
+            }
+
+            rows.give(row);
+        });
+
+        double low = Double.POSITIVE_INFINITY, high = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < height; y++) {
+            low = Math.min(low, lows[y]);
+            high = Math.max(high, highs[y]);
+        }
+
+        return new double[]{low, high};
+    }
+
+    private void sweep(Pipeline.RowSource source, ReliefSettings settings, double range, Progress progress) {
+        // Heights are multiplied by zScale to put them in points, so they can be
+        // compared with the distance between points
+
+        double zScale = (range > 0) ? settings.relief * width / range : 0;
+
+        // The direction the light comes from, with x to the right, y to the top of
+        // the image and z up out of the ground
+
+        double azimuth = Math.toRadians(settings.azimuth);
+        double elevation = Math.toRadians(settings.elevation);
+
+        double lightX = Math.cos(elevation) * Math.sin(azimuth);
+        double lightY = Math.cos(elevation) * Math.cos(azimuth);
+        double lightZ = Math.sin(elevation);
+
+        boolean octahedral = settings.normalFormat == OCTAHEDRAL16;
+
+        // Each band takes its rows out of the pool, grown when a band needs more
+        ScratchPool<double[][]> scratch = new ScratchPool<>(() -> new double[0][]);
+
+        RowBands.runBands(height, settings.parallel, progress, (start, end) -> {
+            int count = end - start + 2;
+
+            double[][] rows = scratch.take();
+            if (rows.length < count)
+                rows = new double[count][width];
+
+            // rows[i] is row start - 1 + i, with the rows past the top and bottom
+            // being the same as the edge rows
+
+            for (int i = 0; i < count; i++)
+                source.row(Math.min(height - 1, Math.max(0, start - 1 + i)), rows[i]);
+
+            for (int y = start; y < end; y++) {
+                double[] above = rows[y - start], row = rows[y - start + 1], below = rows[y - start + 2];
+                int out = y * width;
+
+                for (int x = 0; x < width; x++) {
+                    int left = (x > 0) ? x - 1 : x, right = (x < width - 1) ? x + 1 : x;
+
+                    // Horn's slopes, how much the height changes for each point to
+                    // the right and each point down the image
+
+                    double across = ((above[right] + 2 * row[right] + below[right])
+                            - (above[left] + 2 * row[left] + below[left])) / 8 * zScale;
+                    double down = ((below[left] + 2 * below[x] + below[right])
+                            - (above[left] + 2 * above[x] + above[right])) / 8 * zScale;
+
+                    // The normal leans away from the way the ground goes up.  y
+                    // points to the top of the image, so going down the image the
+                    // other way round.
+
+                    double length = Math.sqrt(across * across + down * down + 1);
+                    double nx = -across / length, ny = down / length, nz = 1 / length;
+
+                    normals[out + x] = octahedral ? packOctahedral(nx, ny, nz) : packRgb(nx, ny, nz);
+
+                    double light = nx * lightX + ny * lightY + nz * lightZ;
+                    shade[out + x] = (light > 0) ? (int) Math.round(light * 255) : 0;
+                }
+            }
+
+            scratch.give(rows);
+        });
+    }
+
+    private static int toByte(double unit) {
+        // -1..1 into 0..255
+        return (int) Math.round((unit * 0.5 + 0.5) * 255);
+    }
+
+    private static int packRgb(double nx, double ny, double nz) {
+        return (toByte(nx) << 16) | (toByte(ny) << 8) | toByte(nz);
+    }
+
+    private static int packOctahedral(double nx, double ny, double nz) {
+        // Squash the normal onto the octahedron |x| + |y| + |z| = 1 and keep x and y.
+        // A normal pointing down (never the case for a heightfield) would fold out
+        // into the corners of the square.
+
+        double sum = Math.abs(nx) + Math.abs(ny) + Math.abs(nz);
+        double u = nx / sum, v = ny / sum;
+
+        if (nz < 0) {
+            double foldU = (1 - Math.abs(v)) * Math.signum(u);
+            double foldV = (1 - Math.abs(u)) * Math.signum(v);
+            u = foldU;
+            v = foldV;
+        }
+
+        return (toByte(u) << 8) | toByte(v);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This class runs a piece of work over every row of an image.  The rows are either
+ * done one after another on the calling thread, or they are split up into bands of
+ * rows and handed out to the ForkJoin common pool.
+ *
+ * The row function is only ever allowed to write to its own row, so the end result
+ * is exactly the same no matter how the bands get split up between the threads.
+ *
+ * If a Progress is given, every finished row counts as one step of it, and the rows
+ * stop being handed out as soon as it is cancelled.
+ *
+ * Work that wants a whole band at once (to share the rows around the edges of the
+ * band, say) can use runBands(), which hands out start and end rows instead.
+ */
+
+package fractal;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+class RowBands {
+    // Bands with this many rows (or fewer) are not split up any further
+    private static final int BAND_ROWS = 16;
+
+    static void run(int rows, boolean parallel, Progress progress, IntConsumer row) {
+        run(rows, parallel, i -> {
+            row.accept(i);
+            progress.step(1);
+        });
+    }
+
+    static void run(int rows, boolean parallel, IntConsumer row) {
+        if (parallel)
+            ForkJoinPool.commonPool().invoke(new Band(0, rows, (start, end) -> {
+                for (int i = start; i < end; i++)
+                    row.accept(i);
+            }));
+        else
+            for (int i = 0; i < rows; i++)
+                row.accept(i);
+    }
+
+    interface Rows {
+        // Do the rows from start up to (but not including) end
+        void run(int start, int end);
+    }
+
+    static void runBands(int rows, boolean parallel, Progress progress, Rows band) {
+        // Hand out the rows in bands of at most BAND_ROWS rows, one after another
+        // or on the common pool
+
+        Rows counted = (start, end) -> {
+            band.run(start, end);
+            progress.step(end - start);
+        };
+
+        if (parallel)
+            ForkJoinPool.commonPool().invoke(new Band(0, rows, counted));
+        else
+            for (int i = 0; i < rows; i += BAND_ROWS)
+                counted.run(i, Math.min(rows, i + BAND_ROWS));
+    }
+
+    private static class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start, end;
+        private final Rows rows;
+
+        Band(int start, int end, Rows rows) {
+            this.start = start;
+            this.end = end;
+            this.rows = rows;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= BAND_ROWS) {
+                rows.run(start, end);
+                return;
+            }
+
+            // Cut the band in half and run both halves
+            int middle = (start + end) >>> 1;
+            invokeAll(new Band(start, middle, rows), new Band(middle, end, rows));
+        }
+    }
+}
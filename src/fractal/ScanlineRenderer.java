@@ -0,0 +1,584 @@
+/*
+ * This class works out a whole row (scanline) of a Perlin image at a time, instead of
+ * one pixel at a time.  It is used when PerlinSettings.vectorized is turned on.
+ *
+ * Everything about an octave that only depends on the pixel's column (which lattice
+ * columns it sits between and how far across the cell it is) is the same for every
+ * row, so it is worked out once per octave into tables.  Then each row of each octave
+ * is done in two steps:
+ *
+ * 	1.  Gather - copy the lattice values (or gradients) that every pixel in the row
+ * 		needs into a set of plain arrays, one array per corner.
+ *
+ * 	2.  Blend - run the interpolation math over those arrays.  This loop has no
+ * 		method calls, no branches and no indexed lookups, just the same arithmetic
+ * 		on element x of every array, which is the shape of loop that the HotSpot JIT
+ * 		turns into SIMD instructions (SSE/AVX2/AVX-512, whatever the CPU has).
+ *
+ * With PerlinSettings.separable on as well, the x direction is taken one step further.
+ * Interpolating across a lattice row only depends on the lattice row, not on which
+ * pixel row inside the cell is being done, so each octave interpolates every lattice
+ * row across just once and keeps the result (LatticeRow) for all the pixel rows
+ * that fall between it and the next one.  Working a lattice row out also only reads
+ * each lattice column once, and for cubic the curve's four coefficients are worked
+ * out once per cell and then used for every pixel in it.  All that is left for each
+ * pixel of each octave is the short blend down between the rows it sits between.  The
+ * rows of an image are done in order, a band at a time, so the lattice rows a pixel
+ * row needs are almost always still there from the row before.
+ *
+ * The blend loops use exactly the same formulas, in the same order, as the per-pixel
+ * interpolation methods in PerlinFractal, so the results match the per-pixel path
+ * exactly (the allowed difference between the two paths, EPSILON, is zero).  If one
+ * of those formulas is changed, the matching loop here has to be changed too.
+ */
+
+package fractal;
+
+import java.util.Arrays;
+
+class ScanlineRenderer {
+    // The most that a value from this class may differ from the per-pixel path
+    static final double EPSILON = 0;
+
+    private static final int LINEAR = PerlinFractal.LINEAR, COSINE = PerlinFractal.COSINE,
+            CUBIC = PerlinFractal.CUBIC, STANDARD = PerlinFractal.STANDARD;
+
+    // Number of scratch arrays a band needs for one row of one octave
+    private static final int SCRATCH_ROWS = 8;
+
+    // Number of lattice rows kept for each octave when separable is on.  Cubic
+    // needs four in a row at once, and four in a row never share a slot.
+    private static final int CACHED_ROWS = 4;
+
+    // Width of a row, and the x of its first pixel
+    private final int size, left;
+
+    private final int interp;
+    private final boolean fastMath, separable;
+
+    private final NoiseSource lattice;
+
+    private final Octave[] octaves;
+
+    // Each band of rows takes its own scratch arrays out of here (see ScratchPool)
+    private final ScratchPool<Scratch> scratch;
+
+    // separable only: the most lattice columns any octave reads
+    private final int mostColumns;
+
+    private static class Octave {
+        int blend;
+        double divide;
+
+        // Lattice columns to the left and right of each pixel, and for cubic the
+        // columns one further out on each side
+        int[] left, right, farLeft, farRight;
+
+        // How far across its cell each pixel is.  For cosine this is already run
+        // through the cosine curve, and for standard it is the smoothstep curve.
+        double[] weight;
+
+        // Standard only: the x parts of the vectors from the two corners to the pixel
+        double[] fromLeft, fromRight;
+
+        // separable only: every lattice column any pixel reads, in order, and where
+        // the first one a pixel reads is in that list
+        int[] columns, cell;
+    }
+
+    private class Scratch {
+        final double[][] rows = new double[SCRATCH_ROWS][size];
+
+        // separable only: the lattice rows, [octave][slot], and the arrays the
+        // lattice columns are read into.  These go back into the pool with the rows,
+        // so the next band on can still use the lattice rows left in them.
+        LatticeRow[][] latticeRows;
+        double[][] columns;
+
+        Scratch() {
+            if (!separable)
+                return;
+
+            latticeRows = new LatticeRow[octaves.length][CACHED_ROWS];
+            for (LatticeRow[] octave : latticeRows)
+                for (int i = 0; i < CACHED_ROWS; i++)
+                    octave[i] = new LatticeRow();
+
+            columns = new double[5][mostColumns];
+        }
+    }
+
+    private static class LatticeRow {
+        // One lattice row of one octave, interpolated across to every pixel column
+
+        // The lattice row held here (none yet to start with)
+        int row = Integer.MIN_VALUE;
+
+        // Linear, cosine and cubic: the interpolated value for each pixel column
+        double[] across;
+
+        // Standard: each pixel's gradient x times its distance across from the
+        // left and right corner, and the gradient y of those two corners
+        double[] leftX, rightX, leftY, rightY;
+    }
+
+    ScanlineRenderer(int size, int left, PerlinFractal.PerlinSettings settings, OctavePlan plan,
+                     NoiseSource lattice) {
+        this.size = size;
+        this.left = left;
+        this.interp = settings.interp;
+        this.fastMath = settings.fastMath;
+        this.separable = settings.separable;
+        this.lattice = lattice;
+
+        octaves = new Octave[plan.blends.length];
+        for (int i = 0; i < octaves.length; i++)
+            octaves[i] = makeOctave(plan.blends[i], plan.divide[i]);
+
+        int most = 0;
+        for (Octave o : octaves)
+            most = (o.columns == null) ? most : Math.max(most, o.columns.length);
+
+        mostColumns = most;
+
+        scratch = new ScratchPool<>(Scratch::new);
+    }
+
+    private Octave makeOctave(int blend, double divide) {
+        Octave o = new Octave();
+        o.blend = blend;
+        o.divide = divide;
+
+        o.left = new int[size];
+        o.right = new int[size];
+        o.weight = new double[size];
+
+        if (interp == CUBIC) {
+            o.farLeft = new int[size];
+            o.farRight = new int[size];
+        }
+
+        if (interp == STANDARD) {
+            o.fromLeft = new double[size];
+            o.fromRight = new double[size];
+        }
+
+        for (int j = 0; j < size; j++) {
+            double x = (double) (left + j) / blend;
+            double floorX = Math.floor(x);
+            double fractx = x - floorX;
+
+            // The lattice columns don't need wrapping, the noise source does that
+            o.left[j] = (int) floorX;
+            o.right[j] = o.left[j] + 1;
+
+            switch (interp) {
+                case LINEAR:
+                case COSINE:
+                    o.weight[j] = (interp == COSINE) ? cosineWeight(fractx) : fractx;
+                    break;
+
+                case CUBIC:
+                    o.farLeft[j] = o.left[j] - 1;
+                    o.farRight[j] = o.left[j] + 2;
+                    o.weight[j] = fractx;
+                    break;
+
+                case STANDARD:
+                    double x0 = x - o.left[j];
+                    o.fromLeft[j] = x0;
+                    o.fromRight[j] = x - o.right[j];
+                    o.weight[j] = (3 * x0 * x0) - 2 * x0 * x0 * x0;
+                    break;
+            }
+        }
+
+        if (separable) {
+            // The columns run from the first one the first pixel reads to the last
+            // one the last pixel reads (x / blend only goes up along the row)
+
+            int[] first = (interp == CUBIC) ? o.farLeft : o.left;
+            int[] last = (interp == CUBIC) ? o.farRight : o.right;
+
+            o.columns = new int[last[size - 1] - first[0] + 1];
+            for (int c = 0; c < o.columns.length; c++)
+                o.columns[c] = first[0] + c;
+
+            o.cell = new int[size];
+            for (int j = 0; j < size; j++)
+                o.cell[j] = first[j] - first[0];
+        }
+
+        return o;
+    }
+
+    private double cosineWeight(double x) {
+        // The part of PerlinFractal.cosineInterpolate that only depends on x
+        if (fastMath)
+            return FastCosine.weight(x);
+
+        double ft = x * Math.PI;
+        return (1 - Math.cos(ft)) * 0.5;
+    }
+
+    void renderRows(int first, int last, double[][] sums, int offset) {
+        // Rows first up to (but not including) last, one after another from offset
+        // on, with one set of scratch arrays for all of them
+
+        Scratch band = scratch.take();
+
+        try {
+            for (int y = first; y < last; y++)
+                renderRow(y, sums, offset + (y - first) * size, band);
+        } finally {
+            scratch.give(band);
+        }
+    }
+
+    private void renderRow(int y, double[][] sums, int offset, Scratch band) {
+        // Add up every octave for row y into sums[last][offset] .. [offset + size - 1].
+        // Any other array in sums that isn't null gets a copy of the running total
+        // after its octave, so sums[k] ends up with the first k + 1 octaves added up.
+
+        double[] out = sums[sums.length - 1];
+
+        Arrays.fill(out, offset, offset + size, 0);
+
+        for (int k = 0; k < octaves.length; k++) {
+            Octave o = octaves[k];
+            double yy = (double) y / o.blend;
+
+            if (separable) {
+                switch (interp) {
+                    case LINEAR:
+                    case COSINE:
+                        separableBlendOctave(k, o, yy, out, offset, band);
+                        break;
+
+                    case CUBIC:
+                        separableCubicOctave(k, o, yy, out, offset, band);
+                        break;
+
+                    case STANDARD:
+                        separableStandardOctave(k, o, yy, out, offset, band);
+                        break;
+                }
+            } else {
+                switch (interp) {
+                    case LINEAR:
+                    case COSINE:
+                        blendOctave(o, yy, out, offset, band);
+                        break;
+
+                    case CUBIC:
+                        cubicOctave(o, yy, out, offset, band);
+                        break;
+
+                    case STANDARD:
+                        standardOctave(o, yy, out, offset, band);
+                        break;
+                }
+            }
+
+            if (sums[k] != null && sums[k] != out)
+                System.arraycopy(out, offset, sums[k], offset, size);
+        }
+    }
+
+    private void blendOctave(Octave o, double y, double[] out, int offset, Scratch band) {
+        // Linear and cosine interpolation, the only difference is in the weights
+
+        double floorY = Math.floor(y);
+
+        int y1 = (int) floorY;
+        int y2 = y1 + 1;
+
+        double fracty = y - floorY;
+        double wy = (interp == COSINE) ? cosineWeight(fracty) : fracty;
+
+        double[][] rows = band.rows;
+        double[] n1 = rows[0], n2 = rows[1], n3 = rows[2], n4 = rows[3];
+
+        // Gather
+
+        lattice.values(o.left, y1, n1);
+        lattice.values(o.right, y1, n2);
+        lattice.values(o.left, y2, n3);
+        lattice.values(o.right, y2, n4);
+
+        // Blend
+
+        double[] w = o.weight;
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++) {
+            double i1 = n1[j] * (1 - w[j]) + n2[j] * w[j];
+            double i2 = n3[j] * (1 - w[j]) + n4[j] * w[j];
+            out[offset + j] += (i1 * (1 - wy) + i2 * wy) / divide;
+        }
+    }
+
+    private void cubicOctave(Octave o, double y, double[] out, int offset, Scratch band) {
+        double floorY = Math.floor(y);
+        double fracty = y - floorY;
+
+        double[][] rows = band.rows;
+        double[] v0 = rows[0], v1 = rows[1], v2 = rows[2], v3 = rows[3];
+
+        double[] w = o.weight;
+
+        // Interpolate across each of the four lattice rows around this row,
+        // leaving the results in rows[4] .. rows[7]
+
+        for (int k = 0; k < 4; k++) {
+            int row = (int) floorY - 1 + k;
+
+            lattice.values(o.farLeft, row, v0);
+            lattice.values(o.left, row, v1);
+            lattice.values(o.right, row, v2);
+            lattice.values(o.farRight, row, v3);
+
+            double[] across = rows[4 + k];
+
+            for (int j = 0; j < size; j++) {
+                double x = w[j];
+                double p = (v3[j] - v2[j]) - (v0[j] - v1[j]);
+                double q = (v0[j] - v1[j]) - p;
+                double r = v2[j] - v0[j];
+                double s = v1[j];
+                across[j] = p * x * x * x + q * x * x + r * x + s;
+            }
+        }
+
+        // Now interpolate down between the four rows
+
+        double[] i1 = rows[4], i2 = rows[5], i3 = rows[6], i4 = rows[7];
+        double x = fracty;
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++) {
+            double p = (i4[j] - i3[j]) - (i1[j] - i2[j]);
+            double q = (i1[j] - i2[j]) - p;
+            double r = i3[j] - i1[j];
+            double s = i2[j];
+            out[offset + j] += (p * x * x * x + q * x * x + r * x + s) / divide;
+        }
+    }
+
+    private void standardOctave(Octave o, double y, double[] out, int offset, Scratch band) {
+        // Mr. Perlin's method, see PerlinFractal.originalNoise
+
+        int yInt = (int) Math.floor(y);
+        int yNext = yInt + 1;
+
+        double y0 = y - yInt;
+        double y1 = y - yNext;
+        double sY = (3 * y0 * y0) - 2 * y0 * y0 * y0;
+
+        double[][] rows = band.rows;
+        double[] blX = rows[0], blY = rows[1], brX = rows[2], brY = rows[3];
+        double[] tlX = rows[4], tlY = rows[5], trX = rows[6], trY = rows[7];
+
+        // Gather the four gradients around every pixel
+
+        lattice.gradients(o.left, yInt, blX, blY);
+        lattice.gradients(o.right, yInt, brX, brY);
+        lattice.gradients(o.left, yNext, tlX, tlY);
+        lattice.gradients(o.right, yNext, trX, trY);
+
+        // Dot products and weighted averages
+
+        double[] x0 = o.fromLeft, x1 = o.fromRight, sX = o.weight;
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++) {
+            double s = blX[j] * x0[j] + blY[j] * y0;
+            double t = brX[j] * x1[j] + brY[j] * y0;
+            double u = tlX[j] * x0[j] + tlY[j] * y1;
+            double v = trX[j] * x1[j] + trY[j] * y1;
+
+            double a = s + sX[j] * (t - s);
+            double b = u + sX[j] * (v - u);
+
+            out[offset + j] += (a + sY * (b - a)) / divide;
+        }
+    }
+
+    private LatticeRow latticeRow(int k, Octave o, int row, Scratch band) {
+        // Lattice row row of octave k, interpolated across, worked out now unless
+        // band's scratch still has it
+
+        LatticeRow cached = band.latticeRows[k][Math.floorMod(row, CACHED_ROWS)];
+
+        if (cached.row != row) {
+            switch (interp) {
+                case LINEAR:
+                case COSINE:
+                    blendAcross(o, row, cached, band);
+                    break;
+
+                case CUBIC:
+                    cubicAcross(o, row, cached, band);
+                    break;
+
+                case STANDARD:
+                    standardAcross(o, row, cached, band);
+                    break;
+            }
+
+            cached.row = row;
+        }
+
+        return cached;
+    }
+
+    private void blendAcross(Octave o, int row, LatticeRow into, Scratch band) {
+        if (into.across == null)
+            into.across = new double[size];
+
+        double[] values = band.columns[0];
+        lattice.values(o.columns, row, values);
+
+        double[] w = o.weight;
+        int[] cell = o.cell;
+        double[] across = into.across;
+
+        for (int j = 0; j < size; j++) {
+            int c = cell[j];
+            across[j] = values[c] * (1 - w[j]) + values[c + 1] * w[j];
+        }
+    }
+
+    private void cubicAcross(Octave o, int row, LatticeRow into, Scratch band) {
+        if (into.across == null)
+            into.across = new double[size];
+
+        double[][] columns = band.columns;
+        double[] values = columns[0];
+        double[] p = columns[1], q = columns[2], r = columns[3], s = columns[4];
+
+        lattice.values(o.columns, row, values);
+
+        // The curve's coefficients for each cell, from the four columns around it
+
+        for (int c = 0; c + 3 < o.columns.length; c++) {
+            double v0 = values[c], v1 = values[c + 1], v2 = values[c + 2], v3 = values[c + 3];
+
+            p[c] = (v3 - v2) - (v0 - v1);
+            q[c] = (v0 - v1) - p[c];
+            r[c] = v2 - v0;
+            s[c] = v1;
+        }
+
+        // And the curve at each pixel
+
+        double[] w = o.weight;
+        int[] cell = o.cell;
+        double[] across = into.across;
+
+        for (int j = 0; j < size; j++) {
+            int c = cell[j];
+            double x = w[j];
+            across[j] = p[c] * x * x * x + q[c] * x * x + r[c] * x + s[c];
+        }
+    }
+
+    private void standardAcross(Octave o, int row, LatticeRow into, Scratch band) {
+        if (into.leftX == null) {
+            into.leftX = new double[size];
+            into.rightX = new double[size];
+            into.leftY = new double[size];
+            into.rightY = new double[size];
+        }
+
+        double[][] columns = band.columns;
+        double[] gx = columns[0], gy = columns[1];
+
+        lattice.gradients(o.columns, row, gx, gy);
+
+        double[] x0 = o.fromLeft, x1 = o.fromRight;
+        int[] cell = o.cell;
+
+        for (int j = 0; j < size; j++) {
+            int c = cell[j];
+
+            into.leftX[j] = gx[c] * x0[j];
+            into.rightX[j] = gx[c + 1] * x1[j];
+            into.leftY[j] = gy[c];
+            into.rightY[j] = gy[c + 1];
+        }
+    }
+
+    private void separableBlendOctave(int k, Octave o, double y, double[] out, int offset, Scratch band) {
+        // blendOctave, with the two lattice rows already interpolated across
+
+        double floorY = Math.floor(y);
+
+        int y1 = (int) floorY;
+
+        double fracty = y - floorY;
+        double wy = (interp == COSINE) ? cosineWeight(fracty) : fracty;
+
+        double[] i1 = latticeRow(k, o, y1, band).across;
+        double[] i2 = latticeRow(k, o, y1 + 1, band).across;
+
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++)
+            out[offset + j] += (i1[j] * (1 - wy) + i2[j] * wy) / divide;
+    }
+
+    private void separableCubicOctave(int k, Octave o, double y, double[] out, int offset, Scratch band) {
+        // cubicOctave, with the four lattice rows already interpolated across
+
+        double floorY = Math.floor(y);
+        int row = (int) floorY;
+
+        double[] i1 = latticeRow(k, o, row - 1, band).across;
+        double[] i2 = latticeRow(k, o, row, band).across;
+        double[] i3 = latticeRow(k, o, row + 1, band).across;
+        double[] i4 = latticeRow(k, o, row + 2, band).across;
+
+        double x = y - floorY;
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++) {
+            double p = (i4[j] - i3[j]) - (i1[j] - i2[j]);
+            double q = (i1[j] - i2[j]) - p;
+            double r = i3[j] - i1[j];
+            double s = i2[j];
+            out[offset + j] += (p * x * x * x + q * x * x + r * x + s) / divide;
+        }
+    }
+
+    private void separableStandardOctave(int k, Octave o, double y, double[] out, int offset, Scratch band) {
+        // standardOctave, with the x half of each dot product already worked out
+
+        int yInt = (int) Math.floor(y);
+
+        double y0 = y - yInt;
+        double y1 = y - (yInt + 1);
+        double sY = (3 * y0 * y0) - 2 * y0 * y0 * y0;
+
+        LatticeRow bottom = latticeRow(k, o, yInt, band);
+        LatticeRow top = latticeRow(k, o, yInt + 1, band);
+
+        double[] blX = bottom.leftX, blY = bottom.leftY, brX = bottom.rightX, brY = bottom.rightY;
+        double[] tlX = top.leftX, tlY = top.leftY, trX = top.rightX, trY = top.rightY;
+
+        double[] sX = o.weight;
+        double divide = o.divide;
+
+        for (int j = 0; j < size; j++) {
+            double s = blX[j] + blY[j] * y0;
+            double t = brX[j] + brY[j] * y0;
+            double u = tlX[j] + tlY[j] * y1;
+            double v = trX[j] + trY[j] * y1;
+
+            double a = s + sX[j] * (t - s);
+            double b = u + sX[j] * (v - u);
+
+            out[offset + j] += (a + sY * (b - a)) / divide;
+        }
+    }
+}
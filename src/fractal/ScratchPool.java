@@ -0,0 +1,44 @@
+/*
+ * This class hands out scratch arrays (or anything else a band of rows works in) to
+ * the bands of a parallel run, see RowBands.
+ *
+ * A band takes one when it starts and gives it back when it is done.  A new one is only
+ * made when all of the others are being used, so there are never more than there are
+ * bands running at once, and when the rows are done one after another the same one is
+ * used every time.  The pool belongs to whatever made it, not to the threads, so
+ * everything in it goes away with the render instead of staying on the common pool's
+ * threads after the render is finished.
+ */
+
+package fractal;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+class ScratchPool<T> {
+    private final Supplier<T> make;
+
+    private final ArrayDeque<T> free = new ArrayDeque<>();
+
+    ScratchPool(Supplier<T> make) {
+        this.make = make;
+    }
+
+    T take() {
+        T scratch;
+
+        synchronized (free) {
+            scratch = free.pollFirst();
+        }
+
+        return (scratch != null) ? scratch : make.get();
+    }
+
+    void give(T scratch) {
+        // The last one given back is the next one taken, which is the one most
+        // likely to still be in the cache
+        synchronized (free) {
+            free.addFirst(scratch);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * A noise source that smooths another source as it is read, with the same weighted
+ * average as Pipeline.SMOOTH (1/4 for the point, 1/8 for each side and 1/16
+ * for each corner).
+ *
+ * Table noise gets smoothed once up front by Smoothing instead, since that is cheaper
+ * when every point gets read many times.  This is for hashed noise, which has no table
+ * to smooth.  The gradients are passed straight through since smoothing doesn't apply
+ * to Mr. Perlin's method.
+ */
+
+package fractal;
+
+class SmoothedNoise implements NoiseSource {
+    private final NoiseSource source;
+
+    SmoothedNoise(NoiseSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public double value(int x, int y) {
+        double corners = (source.value(x - 1, y - 1) + source.value(x + 1, y - 1)
+                + source.value(x - 1, y + 1) + source.value(x + 1, y + 1)) / 16;
+        double sides = (source.value(x - 1, y) + source.value(x + 1, y)
+                + source.value(x, y - 1) + source.value(x, y + 1)) / 8;
+        double center = source.value(x, y) / 4;
+
+        return corners + sides + center;
+    }
+
+    @Override
+    public double gradientX(int x, int y) {
+        return source.gradientX(x, y);
+    }
+
+    @Override
+    public double gradientY(int x, int y) {
+        return source.gradientY(x, y);
+    }
+
+    @Override
+    public double dot(int x, int y, double dx, double dy) {
+        return source.dot(x, y, dx, dy);
+    }
+
+    @Override
+    public void gradients(int[] columns, int y, double[] outX, double[] outY) {
+        source.gradients(columns, y, outX, outY);
+    }
+}
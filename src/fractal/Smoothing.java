@@ -0,0 +1,99 @@
+/*
+ * This class smooths out a whole heightfield at once.
+ *
+ * It uses the same weighted average as Pipeline.SMOOTH (the point itself counts for
+ * 1/4, its four sides for 1/8 each, and its four corners for 1/16 each), wrapping
+ * around at the edges.  That 3x3 block of weights is the same
+ * thing as averaging 1-2-1 along each row and then 1-2-1 down each column, so it is
+ * done as those two cheaper passes instead of nine reads per point.
+ *
+ * A MappedHeightfield is too big to make a second copy of, so that one is smoothed in
+ * place, one row at a time, keeping only the three rows around the current one (and
+ * the first row, which the last one wraps around to) in memory.
+ */
+
+package fractal;
+
+class Smoothing {
+
+    static Heightfield smooth(Heightfield source, boolean parallel) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        double[] in = source.getData();
+
+        // First pass, along the rows
+
+        double[] across = new double[width * height];
+
+        RowBands.run(height, parallel, y -> {
+            int row = y * width;
+
+            for (int x = 0; x < width; x++) {
+                int left = (x == 0) ? width - 1 : x - 1;
+                int right = (x == width - 1) ? 0 : x + 1;
+
+                across[row + x] = (in[row + left] + 2 * in[row + x] + in[row + right]) * 0.25;
+            }
+        });
+
+        // Second pass, down the columns
+
+        Heightfield result = new Heightfield(width, height);
+        double[] out = result.getData();
+
+        RowBands.run(height, parallel, y -> {
+            int row = y * width;
+            int above = ((y == 0) ? height - 1 : y - 1) * width;
+            int below = ((y == height - 1) ? 0 : y + 1) * width;
+
+            for (int x = 0; x < width; x++)
+                out[row + x] = (across[above + x] + 2 * across[row + x] + across[below + x]) * 0.25;
+        });
+
+        return result;
+    }
+
+    static void smooth(MappedHeightfield field) {
+        int width = field.getWidth();
+        int height = field.getHeight();
+
+        // The rows above, on and below the one being smoothed, as they were before
+        // any smoothing.  Row 0 is kept for the bottom row to wrap around to.
+
+        double[] first = new double[width];
+        field.getRow(0, first, 0);
+
+        double[] above = new double[width];
+        field.getRow(height - 1, above, 0);
+
+        double[] row = first.clone();
+        double[] below = new double[width];
+        double[] out = new double[width];
+
+        for (int y = 0; y < height; y++) {
+            if (y + 1 < height)
+                field.getRow(y + 1, below, 0);
+            else
+                System.arraycopy(first, 0, below, 0, width);
+
+            for (int x = 0; x < width; x++) {
+                int left = (x == 0) ? width - 1 : x - 1;
+                int right = (x == width - 1) ? 0 : x + 1;
+
+                double corners = (above[left] + above[right] + below[left] + below[right]) / 16;
+                double sides = (row[left] + row[right] + above[x] + below[x]) / 8;
+
+                out[x] = corners + sides + row[x] / 4;
+            }
+
+            field.setRow(y, out, 0);
+
+            // Move the window down a row, reusing the oldest array for the next one
+            double[] spare = above;
+            above = row;
+            row = below;
+            below = spare;
+        }
+    }
+}
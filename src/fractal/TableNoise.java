@@ -0,0 +1,81 @@
+/*
+ * A noise source that reads its values out of seeded tables: a heightfield of noise
+ * values and the packed table of gradient vectors that PerlinFractal fills in when
+ * it seeds.  Points past the edges wrap around, so the image tiles.
+ */
+
+package fractal;
+
+class TableNoise implements NoiseSource {
+    private final int width, height;
+
+    private final double[] values;
+
+    // x, y pairs: the vector for point x, y is at [2 * (y * width + x)]
+    private final double[] gradients;
+
+    TableNoise(Heightfield values, double[] gradients) {
+        this.width = values.getWidth();
+        this.height = values.getHeight();
+        this.values = values.getData();
+        this.gradients = gradients;
+    }
+
+    @Override
+    public double value(int x, int y) {
+        return values[index(x, y)];
+    }
+
+    @Override
+    public double gradientX(int x, int y) {
+        return gradients[2 * index(x, y)];
+    }
+
+    @Override
+    public double gradientY(int x, int y) {
+        return gradients[2 * index(x, y) + 1];
+    }
+
+    @Override
+    public void values(int[] columns, int y, double[] out) {
+        int row = index(0, y);
+        int last = columns.length - 1;
+
+        // The columns come in increasing order, so if the first and last ones are
+        // inside the table then all of them are and nothing needs wrapping
+
+        if (last >= 0 && columns[0] >= 0 && columns[last] < width) {
+            for (int j = 0; j <= last; j++)
+                out[j] = values[row + columns[j]];
+        } else {
+            for (int j = 0; j <= last; j++)
+                out[j] = values[row + wrapX(columns[j])];
+        }
+    }
+
+    @Override
+    public void gradients(int[] columns, int y, double[] outX, double[] outY) {
+        int row = index(0, y);
+
+        for (int j = 0; j < columns.length; j++) {
+            int g = 2 * (row + wrapX(columns[j]));
+            outX[j] = gradients[g];
+            outY[j] = gradients[g + 1];
+        }
+    }
+
+    private int wrapX(int x) {
+        if (x < 0 || x >= width)
+            return Math.floorMod(x, width);
+        return x;
+    }
+
+    private int index(int x, int y) {
+        // Nearly every point is already inside the table, so only divide when it isn't
+        x = wrapX(x);
+        if (y < 0 || y >= height)
+            y = Math.floorMod(y, height);
+
+        return y * width + x;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * This class keeps terrains that have already been made, so asking for the same one
+ * again doesn't make it all over.  It works for both engines, and only for terrains
+ * with an explicit seed (settings.seeded), since anything else is meant to come out
+ * different every time.
+ *
+ * A terrain is known by its key: the engine, the size, the seed and every setting
+ * that changes the raw heights (the ones that only change the coloring, like
+ * maxBright, contrast or postSmooth, or only how fast it is made, like parallel, are
+ * left out, so all of those share one cached terrain).  The cache holds the raw
+ * heights from generate(), which finish() and toGray() can then be run on as usual.
+ *
+ * There are two levels:
+ *
+ * 	memory - the terrains used most recently, limited by the number of bytes they
+ * 		take up (the same way as ChunkCache).  The ones that haven't been asked for
+ * 		in the longest time are thrown out first.
+ *
+ * 	disk   - every terrain ever made, one file per terrain in the cache directory.
+ * 		The file is named after a SHA-256 hash of the key, so the same terrain is
+ * 		always found in the same file, whichever program or run made it.  The heights
+ * 		are stored exactly (all 64 bits) and squeezed with Deflate.  Neighboring
+ * 		heights share their top bytes (sign, exponent and the start of the
+ * 		fraction) but not the rest, so each block of heights is split into planes:
+ * 		all of their first bytes, then all of their second bytes and so on.  The
+ * 		top planes squeeze down a long way, and the planes that hardly squeeze at
+ * 		all are stored as they are, so they read back at disk speed.  Files are
+ * 		written to a temporary name and then renamed, so another process never sees
+ * 		half a file.
+ *
+ * A terrain that isn't in memory is looked for on disk, and only made if it isn't
+ * there either.  If it is asked for again while it is still being made, the second
+ * caller waits for the first one instead of making it twice.
+ *
+ * Every call hands back a copy of the heights, so the caller can change them (with
+ * Erosion, say) without changing what is in the cache.
+ */
+
+package fractal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class TerrainCache {
+    // First four bytes of every cache file, "TCH1"
+    private static final int MAGIC = 0x54434831;
+
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    // Heights in each block the file is split into
+    private static final int BLOCK = BUFFER_BYTES / 8;
+
+    private final Path directory;
+
+    private final long maxBytes;
+
+    // Terrains in memory, in least to most recently used order, by their key
+    private final LinkedHashMap<String, Heightfield> terrains = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    // Terrains that are being read or made right now
+    private final ConcurrentHashMap<String, CompletableFuture<Heightfield>> loading = new ConcurrentHashMap<>();
+
+    public TerrainCache(Path directory, long maxBytes) throws IOException {
+        // Keep up to maxBytes of terrains in memory, and all of them in directory
+        // (which is made if it isn't there yet)
+
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+    }
+
+    public Heightfield perlin(int size, PerlinFractal.PerlinSettings settings) {
+        // The raw heights PerlinFractal.generate(settings) makes at this size
+
+        if (!settings.seeded)
+            throw new IllegalArgumentException("Only seeded terrains can be cached");
+
+        String key = "perlin size=" + size + " seed=" + settings.seed + " blends=" + settings.blends
+                + " interp=" + settings.interp + " freqReduc=" + settings.freqReduc + " preSmooth="
+                + settings.preSmooth + " fastMath=" + settings.fastMath + " hashedNoise=" + settings.hashedNoise;
+
+        // Copy the settings, so the caller can change theirs while this is made
+        PerlinFractal.PerlinSettings copy = new PerlinFractal.PerlinSettings();
+        copy.blends = settings.blends;
+        copy.interp = settings.interp;
+        copy.freqReduc = settings.freqReduc;
+        copy.preSmooth = settings.preSmooth;
+        copy.fastMath = settings.fastMath;
+        copy.hashedNoise = settings.hashedNoise;
+        copy.parallel = settings.parallel;
+        copy.vectorized = settings.vectorized;
+        copy.separable = settings.separable;
+        copy.seeded = true;
+        copy.seed = settings.seed;
+
+        return get(key, () -> new PerlinFractal(size).generate(copy));
+    }
+
+    public Heightfield displace(int size, DisplaceFractal.DisplaceSettings settings) {
+        // The raw heights DisplaceFractal.generate(settings) makes at this size
+
+        if (!settings.seeded)
+            throw new IllegalArgumentException("Only seeded terrains can be cached");
+
+        String key = "displace size=" + size + " seed=" + settings.seed + " roughness=" + settings.roughness
+                + " mountainSize=" + settings.mountainSize + " hashedNoise=" + settings.hashedNoise;
+
+        DisplaceFractal.DisplaceSettings copy = new DisplaceFractal.DisplaceSettings();
+        copy.roughness = settings.roughness;
+        copy.mountainSize = settings.mountainSize;
+        copy.hashedNoise = settings.hashedNoise;
+        copy.parallel = settings.parallel;
+        copy.seeded = true;
+        copy.seed = settings.seed;
+
+        return get(key, () -> new DisplaceFractal(size).generate(copy));
+    }
+
+    public long getCachedBytes() {
+        synchronized (terrains) {
+            return bytes;
+        }
+    }
+
+    public void clearMemory() {
+        // Throw out everything in memory, the files on disk stay
+        synchronized (terrains) {
+            terrains.clear();
+            bytes = 0;
+        }
+    }
+
+    private Heightfield get(String key, Supplier<Heightfield> make) {
+        Heightfield terrain = inMemory(key);
+        if (terrain != null)
+            return copyOf(terrain);
+
+        CompletableFuture<Heightfield> made = new CompletableFuture<>();
+        CompletableFuture<Heightfield> already = loading.putIfAbsent(key, made);
+
+        if (already != null)
+            return copyOf(already.join());
+
+        try {
+            // It may have finished and left the loading map between looking in
+            // memory and getting here, so look again
+
+            terrain = inMemory(key);
+
+            if (terrain == null) {
+                Path file = directory.resolve(fileName(key));
+
+                terrain = read(file, key);
+
+                if (terrain == null) {
+                    terrain = make.get();
+                    write(file, key, terrain);
+                }
+
+                store(key, terrain);
+            }
+
+            loading.remove(key, made);
+            made.complete(terrain);
+        } catch (Throwable e) {
+            loading.remove(key, made);
+            made.completeExceptionally(e);
+            throw e;
+        }
+
+        return copyOf(terrain);
+    }
+
+    private Heightfield inMemory(String key) {
+        synchronized (terrains) {
+            return terrains.get(key);
+        }
+    }
+
+    private void store(String key, Heightfield terrain) {
+        synchronized (terrains) {
+            if (terrains.put(key, terrain) == null)
+                bytes += sizeOf(terrain);
+
+            // Throw out the least recently used terrains until it fits again, but
+            // always keep the one that was just stored
+
+            Iterator<Map.Entry<String, Heightfield>> oldest = terrains.entrySet().iterator();
+
+            while (bytes > maxBytes && terrains.size() > 1) {
+                Map.Entry<String, Heightfield> entry = oldest.next();
+                bytes -= sizeOf(entry.getValue());
+                oldest.remove();
+            }
+        }
+    }
+
+    private static long sizeOf(Heightfield terrain) {
+        return 8L * terrain.getWidth() * terrain.getHeight();
+    }
+
+    private static Heightfield copyOf(Heightfield terrain) {
+        Heightfield copy = new Heightfield(terrain.getWidth(), terrain.getHeight());
+        System.arraycopy(terrain.getData(), 0, copy.getData(), 0, copy.getData().length);
+        return copy;
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+
+            return name.append(".terrain").toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Heightfield read(Path file, String key) {
+        // The terrain in file, or null if there is no file.  The key is stored in the
+        // file too, and checked, so a file that doesn't match (or is broken) is just
+        // made again.
+
+        Inflater inflater = new Inflater();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                BUFFER_BYTES))) {
+
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key))
+                return null;
+
+            int width = in.readInt(), height = in.readInt();
+
+            Heightfield terrain = new Heightfield(width, height);
+            double[] data = terrain.getData();
+
+            // Each plane of each block is either squeezed (a positive length) or
+            // stored as it is (a negative one)
+
+            byte[] buffer = new byte[BUFFER_BYTES], packed = new byte[BUFFER_BYTES];
+
+            for (int i = 0; i < data.length; i += BLOCK) {
+                int count = Math.min(BLOCK, data.length - i);
+
+                for (int b = 0; b < 8; b++) {
+                    int length = in.readInt();
+
+                    if (length < 0) {
+                        in.readFully(buffer, b * count, count);
+                    } else {
+                        in.readFully(packed, 0, length);
+
+                        inflater.reset();
+                        inflater.setInput(packed, 0, length);
+
+                        if (inflater.inflate(buffer, b * count, count) != count)
+                            return null;
+                    }
+                }
+
+                unshuffle(buffer, data, i, count);
+            }
+
+            return terrain;
+        } catch (IOException | DataFormatException | IndexOutOfBoundsException e) {
+            // No file (NoSuchFileException), or one cut short (EOFException) or
+            // broken some other way
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void write(Path file, String key, Heightfield terrain) {
+        double[] data = terrain.getData();
+
+        try {
+            Path temp = Files.createTempFile(directory, "terrain", ".tmp");
+
+            try {
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(temp), BUFFER_BYTES))) {
+
+                    out.writeInt(MAGIC);
+                    out.writeUTF(key);
+                    out.writeInt(terrain.getWidth());
+                    out.writeInt(terrain.getHeight());
+
+                    byte[] buffer = new byte[BUFFER_BYTES], packed = new byte[BUFFER_BYTES];
+
+                    for (int i = 0; i < data.length; i += BLOCK) {
+                        int count = Math.min(BLOCK, data.length - i);
+
+                        shuffle(data, i, count, buffer);
+
+                        // The low bytes of the heights are close to random, and
+                        // unsqueezing them costs more than reading them, so a plane
+                        // is only stored squeezed if that saves at least an eighth
+
+                        for (int b = 0; b < 8; b++) {
+                            deflater.reset();
+                            deflater.setInput(buffer, b * count, count);
+                            deflater.finish();
+
+                            int length = deflater.deflate(packed, 0, count);
+
+                            if (deflater.finished() && length < count - count / 8) {
+                                out.writeInt(length);
+                                out.write(packed, 0, length);
+                            } else {
+                                out.writeInt(-1);
+                                out.write(buffer, b * count, count);
+                            }
+                        }
+                    }
+                } finally {
+                    deflater.end();
+                }
+
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't write " + file, e);
+        }
+    }
+
+    private static void shuffle(double[] data, int start, int count, byte[] buffer) {
+        // Split count heights from start up into their 8 bytes, top byte first, with
+        // byte b of height i going to buffer[b * count + i]
+
+        for (int i = 0; i < count; i++) {
+            long bits = Double.doubleToRawLongBits(data[start + i]);
+
+            for (int b = 0; b < 8; b++)
+                buffer[b * count + i] = (byte) (bits >>> (56 - 8 * b));
+        }
+    }
+
+    private static void unshuffle(byte[] buffer, double[] data, int start, int count) {
+        // Put shuffle() back together
+
+        for (int i = 0; i < count; i++) {
+            long bits = 0;
+
+            for (int b = 0; b < 8; b++)
+                bits = (bits << 8) | (buffer[b * count + i] & 0xFF);
+
+            data[start + i] = Double.longBitsToDouble(bits);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * This class writes and reads heightfield files that are cut up into tiles, so a
+ * reader can get at any part of a terrain without reading (or even unsqueezing) the
+ * rest of it.
+ *
+ * The heights are kept as 32 bit floats, the same as the .pfm and .f32 files.  The
+ * file is laid out like this, with every number little endian:
+ *
+ * 	header - "HTF1", then the width, height and tile size as ints
+ *
+ * 	index  - for every tile, row after row of tiles, where its data starts in the file
+ * 		(a long) and how many bytes it takes up (an int)
+ *
+ * 	tiles  - the data for each tile, one after another
+ *
+ * Tiles are tileSize x tileSize, except along the right and bottom edges where they
+ * are cut short to fit.  Each one is squeezed on its own in three steps:
+ *
+ * 	1.  Predict - each height is guessed from the ones to its left, above it and above
+ * 		left (left + above - above left, which is spot on for any flat slope), and
+ * 		only the difference from the guess is kept.  The floats are first turned
+ * 		into ints that sort the same way as the floats do, so the differences are
+ * 		small for heights that are close together and the whole thing is exact.
+ *
+ * 	2.  Split  - the differences are split into planes of bytes, all of their top
+ * 		bytes first, so the zeros they mostly start with end up next to each other.
+ *
+ * 	3.  Deflate.
+ *
+ * open() memory maps the file (in pieces of up to MAP_BYTES, each holding whole tiles)
+ * and reads the index, and after that readTile() and readRegion() only unsqueeze the
+ * tiles they need.  Tiles can be read from any number of threads at once, and
+ * readRegion() can unsqueeze its tiles on all of the cores.
+ *
+ * write() goes through the heights a row of tiles at a time, squeezing the tiles of
+ * each row in parallel, so it works straight from a MappedHeightfield that is far
+ * bigger than the heap too.
+ */
+
+package fractal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+public class TiledHeightfield implements Closeable {
+    // The tile size the batch jobs use
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    // "HTF1", read as a little endian int
+    private static final int MAGIC = 0x31465448;
+
+    private static final int HEADER_BYTES = 16, INDEX_BYTES = 12;
+
+    // Largest single mapping, in bytes
+    private static final long MAP_BYTES = 1L << 30;
+
+    private final int width, height, tileSize, tilesX, tilesY;
+
+    private final FileChannel channel;
+
+    // Where each tile is in the file and how long it is
+    private final long[] offsets;
+    private final int[] lengths;
+
+    // The mapped pieces of the file, where each one starts, and which piece each
+    // tile is in
+    private final MappedByteBuffer[] maps;
+    private final long[] mapStarts;
+    private final int[] tileMap;
+
+    // Each thread reading tiles gets its own Inflater and buffers
+    private final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(this::newDecoder);
+
+    // Every Decoder handed out, so close() can free their Inflaters.  Inflaters
+    // hold memory outside the heap that is only given back by end().
+    private final List<Decoder> made = new ArrayList<>();
+
+    private volatile boolean closed;
+
+    private TiledHeightfield(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+
+            if (header.getInt(0) != MAGIC)
+                throw new IOException(path + " isn't a tiled heightfield file");
+
+            width = header.getInt(4);
+            height = header.getInt(8);
+            tileSize = header.getInt(12);
+
+            if (width < 1 || height < 1 || tileSize < 1)
+                throw new IOException(path + " has a broken header");
+
+            tilesX = (width + tileSize - 1) / tileSize;
+            tilesY = (height + tileSize - 1) / tileSize;
+
+            int tiles = tilesX * tilesY;
+
+            ByteBuffer index = ByteBuffer.allocate(tiles * INDEX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(index, HEADER_BYTES);
+
+            offsets = new long[tiles];
+            lengths = new int[tiles];
+
+            for (int t = 0; t < tiles; t++) {
+                offsets[t] = index.getLong(t * INDEX_BYTES);
+                lengths[t] = index.getInt(t * INDEX_BYTES + 8);
+            }
+
+            // Map the tiles in pieces, starting a new piece whenever the next tile
+            // would make the current one too big.  The tiles come one after another
+            // in the file, in the same order as the index.
+
+            tileMap = new int[tiles];
+
+            int count = 0;
+            long[] starts = new long[tiles];
+            long[] ends = new long[tiles];
+
+            for (int t = 0; t < tiles; t++) {
+                long end = offsets[t] + lengths[t];
+
+                if (count == 0 || end - starts[count - 1] > MAP_BYTES) {
+                    starts[count] = offsets[t];
+                    count++;
+                }
+
+                ends[count - 1] = end;
+                tileMap[t] = count - 1;
+            }
+
+            maps = new MappedByteBuffer[count];
+            mapStarts = new long[count];
+
+            for (int m = 0; m < count; m++) {
+                mapStarts[m] = starts[m];
+                maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, starts[m], ends[m] - starts[m]);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static TiledHeightfield open(Path path) throws IOException {
+        return new TiledHeightfield(path);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public Heightfield readTile(int tileX, int tileY) {
+        // Just the one tile, cut short along the right and bottom edges
+
+        int left = tileX * tileSize, top = tileY * tileSize;
+        return readRegion(left, top, Math.min(tileSize, width - left), Math.min(tileSize, height - top), false);
+    }
+
+    public Heightfield readAll(boolean parallel) {
+        return readRegion(0, 0, width, height, parallel);
+    }
+
+    public Heightfield readRegion(int left, int top, int regionWidth, int regionHeight, boolean parallel) {
+        // Read the rectangle starting at left, top, unsqueezing only the tiles it
+        // touches.  Each tile fills in its own part of the region, so they can all
+        // be done at once.
+
+        if (left < 0 || top < 0 || regionWidth < 1 || regionHeight < 1 || left + regionWidth > width
+                || top + regionHeight > height)
+            throw new IllegalArgumentException("The region has to be inside the " + width + " x " + height + " field");
+
+        Heightfield region = new Heightfield(regionWidth, regionHeight);
+        double[] data = region.getData();
+
+        int firstX = left / tileSize, lastX = (left + regionWidth - 1) / tileSize;
+        int firstY = top / tileSize, lastY = (top + regionHeight - 1) / tileSize;
+        int across = lastX - firstX + 1;
+
+        RowBands.run(across * (lastY - firstY + 1), parallel, i -> {
+            int tileX = firstX + i % across, tileY = firstY + i / across;
+
+            int tileLeft = tileX * tileSize, tileTop = tileY * tileSize;
+            int tileWidth = Math.min(tileSize, width - tileLeft);
+
+            int[] values = decode(tileX, tileY);
+
+            int fromX = Math.max(left, tileLeft), toX = Math.min(left + regionWidth, tileLeft + tileWidth);
+            int fromY = Math.max(top, tileTop), toY = Math.min(top + regionHeight, tileTop + tileSize);
+
+            for (int y = fromY; y < toY; y++) {
+                int from = (y - tileTop) * tileWidth - tileLeft;
+                int to = (y - top) * regionWidth - left;
+
+                for (int x = fromX; x < toX; x++)
+                    data[to + x] = Float.intBitsToFloat(sortable(values[from + x]));
+            }
+        });
+
+        return region;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Free every thread's Inflater.  Any reads still going on have to be
+        // finished first.
+
+        synchronized (made) {
+            closed = true;
+
+            for (Decoder decoder : made)
+                decoder.inflater.end();
+
+            made.clear();
+        }
+
+        channel.close();
+    }
+
+    private Decoder newDecoder() {
+        synchronized (made) {
+            if (closed)
+                throw new IllegalStateException("The file is closed");
+
+            Decoder decoder = new Decoder();
+            made.add(decoder);
+            return decoder;
+        }
+    }
+
+    public static void write(Path path, Heightfield field, int tileSize, boolean parallel) throws IOException {
+        int width = field.getWidth();
+        double[] data = field.getData();
+
+        write(path, width, field.getHeight(), (y, row) -> System.arraycopy(data, y * width, row, 0, width),
+                tileSize, parallel);
+    }
+
+    public static void write(Path path, MappedHeightfield field, int tileSize, boolean parallel) throws IOException {
+        write(path, field.getWidth(), field.getHeight(), (y, row) -> field.getRow(y, row, 0), tileSize, parallel);
+    }
+
+    public static void write(Path path, int width, int height, Pipeline.RowSource source, int tileSize,
+                             boolean parallel) throws IOException {
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("The field has to be at least 1 x 1");
+
+        if (tileSize < 1)
+            throw new IllegalArgumentException("The tile size has to be at least 1, got " + tileSize);
+
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+
+        long[] offsets = new long[tilesX * tilesY];
+        int[] lengths = new int[tilesX * tilesY];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // The tiles go after the header and the index, which are written last
+            // once the index is known
+
+            long position = HEADER_BYTES + (long) INDEX_BYTES * offsets.length;
+
+            double[][] rows = new double[Math.min(tileSize, height)][width];
+            byte[][] packed = new byte[tilesX][];
+
+            for (int tileY = 0; tileY < tilesY; tileY++) {
+                int top = tileY * tileSize;
+                int tileHeight = Math.min(tileSize, height - top);
+
+                for (int y = 0; y < tileHeight; y++)
+                    source.row(top + y, rows[y]);
+
+                RowBands.run(tilesX, parallel, tileX -> packed[tileX] = encode(rows, tileX * tileSize,
+                        Math.min(tileSize, width - tileX * tileSize), tileHeight));
+
+                for (int tileX = 0; tileX < tilesX; tileX++) {
+                    int t = tileY * tilesX + tileX;
+
+                    offsets[t] = position;
+                    lengths[t] = packed[tileX].length;
+
+                    writeFully(channel, ByteBuffer.wrap(packed[tileX]), position);
+                    position += lengths[t];
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + INDEX_BYTES * offsets.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(tileSize);
+
+            for (int t = 0; t < offsets.length; t++)
+                header.putLong(offsets[t]).putInt(lengths[t]);
+
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+    }
+
+    private static byte[] encode(double[][] rows, int left, int tileWidth, int tileHeight) {
+        // Predict, split and squeeze the tile at column left of rows
+
+        int count = tileWidth * tileHeight;
+
+        int[] values = new int[count];
+        for (int y = 0; y < tileHeight; y++)
+            for (int x = 0; x < tileWidth; x++)
+                values[y * tileWidth + x] = sortable(Float.floatToRawIntBits((float) rows[y][left + x]));
+
+        // The differences from the guesses, zigzagged so that small negative ones
+        // are small numbers too, split into planes
+
+        byte[] planes = new byte[4 * count];
+
+        for (int y = 0; y < tileHeight; y++) {
+            for (int x = 0; x < tileWidth; x++) {
+                int i = y * tileWidth + x;
+                int difference = values[i] - predict(values, i, x, y, tileWidth);
+                int zigzag = (difference << 1) ^ (difference >> 31);
+
+                planes[i] = (byte) (zigzag >>> 24);
+                planes[count + i] = (byte) (zigzag >>> 16);
+                planes[2 * count + i] = (byte) (zigzag >>> 8);
+                planes[3 * count + i] = (byte) zigzag;
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(count);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try (DeflaterOutputStream squeezed = new DeflaterOutputStream(out, deflater)) {
+            squeezed.write(planes);
+        } catch (IOException e) {
+            // A ByteArrayOutputStream can't fail
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    private int[] decode(int tileX, int tileY) {
+        // Unsqueeze a tile into this thread's buffer, as sortable ints
+
+        int t = tileY * tilesX + tileX;
+        int tileWidth = Math.min(tileSize, width - tileX * tileSize);
+        int tileHeight = Math.min(tileSize, height - tileY * tileSize);
+        int count = tileWidth * tileHeight;
+
+        if (closed)
+            throw new IllegalStateException("The file is closed");
+
+        Decoder decoder = decoders.get();
+        decoder.fit(lengths[t], count);
+
+        // Mapped buffers keep a position, so each read works on its own duplicate
+
+        ByteBuffer piece = maps[tileMap[t]].duplicate();
+        piece.position((int) (offsets[t] - mapStarts[tileMap[t]]));
+        piece.get(decoder.packed, 0, lengths[t]);
+
+        Inflater inflater = decoder.inflater;
+        inflater.reset();
+        inflater.setInput(decoder.packed, 0, lengths[t]);
+
+        try {
+            int done = 0;
+            while (done < 4 * count && !inflater.finished()) {
+                int got = inflater.inflate(decoder.planes, done, 4 * count - done);
+
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+
+                done += got;
+            }
+
+            if (done != 4 * count)
+                throw new IllegalStateException("Tile " + tileX + ", " + tileY + " is cut short");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Tile " + tileX + ", " + tileY + " is broken", e);
+        }
+
+        byte[] planes = decoder.planes;
+        int[] values = decoder.values;
+
+        for (int y = 0; y < tileHeight; y++) {
+            for (int x = 0; x < tileWidth; x++) {
+                int i = y * tileWidth + x;
+
+                int zigzag = ((planes[i] & 0xFF) << 24) | ((planes[count + i] & 0xFF) << 16)
+                        | ((planes[2 * count + i] & 0xFF) << 8) | (planes[3 * count + i] & 0xFF);
+
+                int difference = (zigzag >>> 1) ^ -(zigzag & 1);
+                values[i] = difference + predict(values, i, x, y, tileWidth);
+            }
+        }
+
+        return values;
+    }
+
+    private static int predict(int[] values, int i, int x, int y, int tileWidth) {
+        // The guess for point i from the points before it: left + above - above left
+        // inside the tile, or just the one neighbor along the top row and left column
+
+        if (y == 0)
+            return (x == 0) ? 0 : values[i - 1];
+        if (x == 0)
+            return values[i - tileWidth];
+
+        return values[i - 1] + values[i - tileWidth] - values[i - tileWidth - 1];
+    }
+
+    private static int sortable(int bits) {
+        // Turn float bits into an int that sorts the same way as the float does
+        // (flip everything but the sign on negative floats).  Doing it twice gives
+        // the bits back.
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("The file is cut short");
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    private static class Decoder {
+        final Inflater inflater = new Inflater();
+
+        byte[] packed = new byte[0], planes = new byte[0];
+        int[] values = new int[0];
+
+        void fit(int packedBytes, int count) {
+            // Grow the buffers to fit a tile
+            if (packed.length < packedBytes)
+                packed = new byte[packedBytes];
+            if (values.length < count) {
+                planes = new byte[4 * count];
+                values = new int[count];
+            }
+        }
+    }
+}